@@ -0,0 +1,70 @@
+package com.alayouni.ansihighlight;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Runs all the ANSI benchmarks with the GC profiler, then summarizes each run in MB/s and allocated bytes per MB.
+ * <p>
+ *     Any standard JMH command line option can be passed to narrow the run, e.g.
+ *     <code>-p sizeMB=1,16 -p density=PER_TOKEN</code> to skip the 256 MB and 1 GB logs.
+ * </p>
+ */
+public class ANSIBenchmarks {
+
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+        Options options = new OptionsBuilder()
+                .parent(new CommandLineOptions(args))
+                .include(ANSIParserBenchmark.class.getSimpleName())
+                .include(ANSIEncoderBenchmark.class.getSimpleName())
+                .include(ANSIEscapeScanBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build();
+        Collection<RunResult> results = new Runner(options).run();
+
+        System.out.println();
+        System.out.println(String.format("%-60s %12s %16s", "Benchmark", "MB/s", "alloc B/MB"));
+        for(RunResult result : results) {
+            Map<String, String> params = paramsOf(result);
+            int sizeMB = params.containsKey("sizeMB") ? Integer.parseInt(params.get("sizeMB")) : 1;
+            double opsPerSecond = result.getPrimaryResult().getScore();
+            double allocPerOp = allocatedBytesPerOp(result);
+            System.out.println(String.format("%-60s %12.1f %16.1f", label(result), opsPerSecond * sizeMB, allocPerOp / sizeMB));
+        }
+    }
+
+    private static Map<String, String> paramsOf(RunResult result) {
+        Map<String, String> params = new TreeMap<>();
+        for(String key : result.getParams().getParamsKeys()) {
+            params.put(key, result.getParams().getParam(key));
+        }
+        return params;
+    }
+
+    private static String label(RunResult result) {
+        String benchmark = result.getParams().getBenchmark();
+        benchmark = benchmark.substring(benchmark.lastIndexOf('.', benchmark.lastIndexOf('.') - 1) + 1);
+        return result.getParams().getParamsKeys().isEmpty() ? benchmark : benchmark + " " + paramsOf(result);
+    }
+
+    /**
+     * the gc profiler secondary result key is prefixed with a middle dot in older JMH versions
+     */
+    private static double allocatedBytesPerOp(RunResult result) {
+        for(Map.Entry<String, Result> entry : result.getSecondaryResults().entrySet()) {
+            if(entry.getKey().endsWith("gc.alloc.rate.norm")) return entry.getValue().getScore();
+        }
+        return Double.NaN;
+    }
+}
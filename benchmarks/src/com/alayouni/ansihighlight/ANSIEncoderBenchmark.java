@@ -0,0 +1,40 @@
+package com.alayouni.ansihighlight;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the graphic rendition fast path (<code>parseGraphicRendition</code> and <code>parseANSICode</code>) in
+ * isolation, by parsing 1 MB made of nothing but the same sequence followed by a
+ * single char, so almost no time is spent searching for the next escape char.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ANSIEncoderBenchmark {
+    public final int sizeMB = 1;
+
+    @Param({"0", "31", "1;31", "1;4;31;42", "1;3;4;37;47;0;32;41", "92;104", "38;5;208", "38;2;255;128;0"})
+    public String codes;
+
+    private String text;
+
+    @Setup(Level.Trial)
+    public void generateSequences() {
+        String unit = "\u001B[" + codes + "mx";
+        StringBuilder sb = new StringBuilder(sizeMB * ANSIParserBenchmark.MB + unit.length());
+        while (sb.length() < sizeMB * ANSIParserBenchmark.MB) {
+            sb.append(unit);
+        }
+        text = sb.toString();
+    }
+
+    @Benchmark
+    public ANSIRunTable decodeSequences() {
+        return ANSIParser.parse(text);
+    }
+}
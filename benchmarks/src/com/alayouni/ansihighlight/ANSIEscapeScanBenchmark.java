@@ -0,0 +1,78 @@
+package com.alayouni.ansihighlight;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the escape char search on its own, by walking all the escape chars of generated logs with either the
+ * plain loop of {@link ANSIParser} or an 8 chars unrolled loop testing whole blocks without short-circuit. Sparse logs
+ * spend nearly all the time in long stretches of plain text, per token logs find an escape char every few chars.
+ * <p>
+ *     The unrolled loop is kept here only as the candidate the parser was measured against, it loses to the plain
+ *     loop on both densities.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ANSIEscapeScanBenchmark {
+    private static final char ESC_CHAR = '\u001B';
+
+    //chars per block of the unrolled loop, and chars scanned one by one before switching to blocks
+    private static final int BLOCK = 8;
+    private static final int LEAD_IN = BLOCK * 2;
+
+    public enum Scan {
+        LOOP, UNROLLED
+    }
+
+    @Param({"16"})
+    public int sizeMB;
+
+    @Param({"SPARSE", "PER_TOKEN"})
+    public ANSILogGenerator.Density density;
+
+    @Param({"LOOP", "UNROLLED"})
+    public Scan scan;
+
+    private char[] chars;
+
+    @Setup(Level.Trial)
+    public void generateLog() {
+        chars = ANSILogGenerator.generate(density, sizeMB * ANSIParserBenchmark.MB).toCharArray();
+    }
+
+    @Benchmark
+    public int findEscapeChars() {
+        int count = 0, from = 0;
+        while (true) {
+            int index = scan == Scan.UNROLLED ? indexOfESCUnrolled(chars, from, chars.length) :
+                    indexOfESCLoop(chars, from, chars.length);
+            if(index < 0) return count;
+            count++;
+            from = index + 1;
+        }
+    }
+
+    static int indexOfESCLoop(char[] chars, int from, int end) {
+        for(int i = from; i < end; i++) {
+            if(chars[i] == ESC_CHAR) return i;
+        }
+        return -1;
+    }
+
+    static int indexOfESCUnrolled(char[] chars, int from, int end) {
+        int i = Math.min(from + LEAD_IN, end);
+        int index = indexOfESCLoop(chars, from, i);
+        if(index >= 0) return index;
+        for(; i + BLOCK <= end; i += BLOCK) {
+            if(chars[i] == ESC_CHAR | chars[i + 1] == ESC_CHAR | chars[i + 2] == ESC_CHAR | chars[i + 3] == ESC_CHAR |
+                    chars[i + 4] == ESC_CHAR | chars[i + 5] == ESC_CHAR | chars[i + 6] == ESC_CHAR | chars[i + 7] == ESC_CHAR) break;
+        }
+        return indexOfESCLoop(chars, i, end);
+    }
+}
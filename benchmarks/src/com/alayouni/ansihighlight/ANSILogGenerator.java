@@ -0,0 +1,134 @@
+package com.alayouni.ansihighlight;
+
+import java.util.Random;
+
+/**
+ * Generates deterministic ANSI colored logs of a given size for the benchmarks.
+ */
+class ANSILogGenerator {
+    private static final String ESC = "\u001B[";
+    private static final String RESET = ESC + "0m";
+
+    private static final String[] WORDS = {
+            "INFO", "DEBUG", "compiling", "module", "task", "finished", "in", "ms", "downloading", "artifact",
+            "resolved", "dependency", "tests", "passed", "skipped", "warning:", "deprecated", "build", "cache", "hit"
+    };
+
+    enum Density {
+        /**
+         * plain lines, one colored status word every 20 lines
+         */
+        SPARSE,
+
+        /**
+         * every token is wrapped in its own color sequence
+         */
+        PER_TOKEN,
+
+        /**
+         * every line starts with a long chain such as <code>ESC[1;4;31;42m</code>
+         */
+        LONG_CHAIN,
+
+        /**
+         * every token gets its own rgb color such as <code>ESC[38;2;255;128;0m</code>
+         */
+        TRUE_COLOR
+    }
+
+    static String generate(Density density, int length) {
+        StringBuilder sb = new StringBuilder(length + 256);
+        Random random = new Random(42);
+        int line = 0;
+        while (sb.length() < length) {
+            switch (density) {
+                case SPARSE:
+                    appendSparseLine(sb, random, line);
+                    break;
+                case PER_TOKEN:
+                    appendPerTokenLine(sb, random);
+                    break;
+                case LONG_CHAIN:
+                    appendLongChainLine(sb, random);
+                    break;
+                case TRUE_COLOR:
+                    appendTrueColorLine(sb, random);
+                    break;
+            }
+            line++;
+        }
+        sb.setLength(length);
+        return sb.toString();
+    }
+
+    /**
+     * @return a log holding at least <code>sequenceCount</code> sequences, whole lines only
+     */
+    static String generateSequences(Density density, int sequenceCount) {
+        StringBuilder sb = new StringBuilder();
+        Random random = new Random(42);
+        int line = 0, sequences = 0;
+        while (sequences < sequenceCount) {
+            int start = sb.length();
+            switch (density) {
+                case SPARSE:
+                    appendSparseLine(sb, random, line);
+                    break;
+                case PER_TOKEN:
+                    appendPerTokenLine(sb, random);
+                    break;
+                case LONG_CHAIN:
+                    appendLongChainLine(sb, random);
+                    break;
+                case TRUE_COLOR:
+                    appendTrueColorLine(sb, random);
+                    break;
+            }
+            for(int i = start; i < sb.length(); i++) {
+                if(sb.charAt(i) == '\u001B') sequences++;
+            }
+            line++;
+        }
+        return sb.toString();
+    }
+
+    private static void appendSparseLine(StringBuilder sb, Random random, int line) {
+        if(line % 20 == 0) {
+            sb.append(ESC).append(31 + random.nextInt(7)).append('m').append("STATUS").append(RESET).append(' ');
+        }
+        appendWords(sb, random, 12);
+        sb.append('\n');
+    }
+
+    private static void appendPerTokenLine(StringBuilder sb, Random random) {
+        for(int i = 0; i < 12; i++) {
+            sb.append(ESC).append(30 + random.nextInt(8)).append('m')
+                    .append(WORDS[random.nextInt(WORDS.length)]).append(RESET).append(' ');
+        }
+        sb.append('\n');
+    }
+
+    private static void appendLongChainLine(StringBuilder sb, Random random) {
+        sb.append(ESC).append(1).append(';').append(random.nextBoolean() ? 3 : 4).append(';')
+                .append(30 + random.nextInt(8)).append(';').append(40 + random.nextInt(8)).append('m');
+        appendWords(sb, random, 6);
+        sb.append(RESET).append(' ');
+        appendWords(sb, random, 6);
+        sb.append('\n');
+    }
+
+    private static void appendTrueColorLine(StringBuilder sb, Random random) {
+        for(int i = 0; i < 12; i++) {
+            sb.append(ESC).append("38;2;").append(random.nextInt(256)).append(';').append(random.nextInt(256))
+                    .append(';').append(random.nextInt(256)).append('m')
+                    .append(WORDS[random.nextInt(WORDS.length)]).append(RESET).append(' ');
+        }
+        sb.append('\n');
+    }
+
+    private static void appendWords(StringBuilder sb, Random random, int count) {
+        for(int i = 0; i < count; i++) {
+            sb.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+        }
+    }
+}
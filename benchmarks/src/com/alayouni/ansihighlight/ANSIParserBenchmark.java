@@ -0,0 +1,43 @@
+package com.alayouni.ansihighlight;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks a whole {@link ANSIParser#parse(CharSequence)} pass over generated logs of several sizes and
+ * densities. Sizes are expressed in MB (1 char is counted as 1 byte since generated logs are ascii),
+ * see {@link ANSIBenchmarks} for the conversion of the scores to MB/s and allocated bytes per MB.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xms6g", "-Xmx6g"})
+public class ANSIParserBenchmark {
+    static final int MB = 1 << 20;
+
+    @Param({"1", "16", "256", "1024"})
+    public int sizeMB;
+
+    @Param({"SPARSE", "PER_TOKEN", "LONG_CHAIN", "TRUE_COLOR"})
+    public ANSILogGenerator.Density density;
+
+    private String text;
+
+    @Setup(Level.Trial)
+    public void generateLog() {
+        text = ANSILogGenerator.generate(density, sizeMB * MB);
+    }
+
+    @TearDown(Level.Trial)
+    public void releaseLog() {
+        text = null;
+    }
+
+    @Benchmark
+    public ANSIRunTable parse() {
+        return ANSIParser.parse(text);
+    }
+}
@@ -0,0 +1,160 @@
+package com.alayouni.ansihighlight;
+
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.application.Result;
+import com.intellij.openapi.application.WriteAction;
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.editor.Editor;
+import com.intellij.openapi.editor.colors.EditorColorsManager;
+import com.intellij.openapi.fileEditor.FileDocumentManager;
+import com.intellij.openapi.fileEditor.FileEditorManager;
+import com.intellij.openapi.vfs.VfsUtil;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.testFramework.PlatformTestUtil;
+import com.intellij.testFramework.fixtures.LightPlatformCodeInsightFixtureTestCase;
+import com.intellij.util.ui.UIUtil;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End to end performance tests of the highlighting on a light project fixture, checking that the editor stays
+ * responsive: for each log size (in sequences, 10K to 2M by default), a generated log is opened then highlighted to
+ * completion in 3 scenarios:
+ * <ol>
+ *     <li>a full {@link ANSIHighlighter#highlightANSISequences(Editor)}</li>
+ *     <li>the file growing by 10% on disk then reloaded, i.e. follow mode</li>
+ *     <li>a color scheme change, re-skinning every ANSI aware editor</li>
+ * </ol>
+ * Each scenario is checked against a total time budget, scaled to the machine by
+ * {@link PlatformTestUtil#startPerformanceTest}, and against the longest EDT slice of {@link HighlightQueue} over all
+ * the attempts.
+ * <p>
+ *     Budgets can be tuned through <code>ansi.perf.budget.ms.per.100k</code> (total time per 100K sequences) and
+ *     <code>ansi.perf.max.slice.ms</code>, log sizes through <code>ansi.perf.sequence.counts</code> (comma separated).
+ * </p>
+ */
+public class ANSIHighlightingPerformanceTest extends LightPlatformCodeInsightFixtureTestCase {
+    private static final int[] SEQUENCE_COUNTS = parseSequenceCounts(System.getProperty("ansi.perf.sequence.counts", "10000,100000,500000,2000000"));
+
+    private static final int BUDGET_PER_100K = Integer.getInteger("ansi.perf.budget.ms.per.100k", 3000);
+    private static final int MIN_BUDGET = 500;
+
+    //slices are budgeted at 6 ms, but a single fold batch or highlighter insert may overshoot it
+    private static final int MAX_SLICE = Integer.getInteger("ansi.perf.max.slice.ms", 50);
+
+    private static final long TIMEOUT = TimeUnit.MINUTES.toMillis(5);
+
+    public void testOpenPerformance() throws Exception {
+        for(int sequenceCount : SEQUENCE_COUNTS) {
+            Editor editor = openLog(sequenceCount);
+            measure("open " + sequenceCount, budget(sequenceCount), editor,
+                    () -> getHighlighter().highlightANSISequences(editor));
+            closeLog();
+        }
+    }
+
+    public void testReloadPerformance() throws Exception {
+        for(int sequenceCount : SEQUENCE_COUNTS) {
+            Editor editor = openLog(sequenceCount);
+            VirtualFile file = myFixture.getFile().getVirtualFile();
+            Document document = editor.getDocument();
+            String appended = ANSILogGenerator.generateSequences(ANSILogGenerator.Density.PER_TOKEN, sequenceCount / 10);
+            //the file keeps growing across the attempts of the performance test
+            StringBuilder content = new StringBuilder(document.getText());
+            measure("reload " + sequenceCount, Math.max(MIN_BUDGET, budget(sequenceCount) / 10), editor, () -> {
+                content.append(appended);
+                new WriteAction() {
+                    @Override
+                    protected void run(@NotNull Result result) throws Throwable {
+                        VfsUtil.saveText(file, content.toString());
+                    }
+                }.execute().throwException();
+                //the document is reloaded on the VFS change already unless the file system delivers it late
+                if(document.getTextLength() != content.length()) {
+                    FileDocumentManager.getInstance().reloadFromDisk(document);
+                }
+            });
+            assertEquals(content.length(), document.getTextLength());
+            closeLog();
+        }
+    }
+
+    public void testSchemeChangePerformance() throws Exception {
+        for(int sequenceCount : SEQUENCE_COUNTS) {
+            Editor editor = openLog(sequenceCount);
+            measure("scheme change " + sequenceCount, budget(sequenceCount), editor, () -> {
+                EditorColorsManager colorsManager = EditorColorsManager.getInstance();
+                ApplicationManager.getApplication().getMessageBus().syncPublisher(EditorColorsManager.TOPIC)
+                        .globalSchemeChange(colorsManager.getGlobalScheme());
+            });
+            closeLog();
+        }
+    }
+
+    /**
+     * opens a generated log, the highlighting started on editor creation being left out of the measures
+     */
+    private Editor openLog(int sequenceCount) throws InterruptedException {
+        String text = ANSILogGenerator.generateSequences(ANSILogGenerator.Density.PER_TOKEN, sequenceCount);
+        myFixture.configureByText("perf-" + sequenceCount + ".log", text);
+        Editor editor = myFixture.getEditor();
+        waitForHighlighting(editor);
+        return editor;
+    }
+
+    private void closeLog() {
+        FileEditorManager.getInstance(getProject()).closeFile(myFixture.getFile().getVirtualFile());
+    }
+
+    private ANSIHighlighter getHighlighter() {
+        return getProject().getComponent(ANSIHighlighterComponent.class).getAnsiHighlighter();
+    }
+
+    private static int budget(int sequenceCount) {
+        return Math.max(MIN_BUDGET, (int) ((long) BUDGET_PER_100K * sequenceCount / 100000));
+    }
+
+    private interface Scenario {
+        void start() throws Throwable;
+    }
+
+    private void measure(String name, int budget, Editor editor, Scenario scenario) {
+        ANSIHighlighterMetrics metrics = ANSIHighlighterMetrics.getInstance();
+        //the metrics are reset per attempt, the longest slice is kept over all of them
+        long[] maxSliceNanos = new long[1];
+        PlatformTestUtil.startPerformanceTest(name, budget, () -> {
+            metrics.reset();
+            scenario.start();
+            waitForHighlighting(editor);
+            maxSliceNanos[0] = Math.max(maxSliceNanos[0], metrics.getMaxSliceNanos());
+        }).cpuBound().assertTiming();
+
+        long maxSlice = TimeUnit.NANOSECONDS.toMillis(maxSliceNanos[0]);
+        assertTrue(name + ": longest EDT slice took " + maxSlice + " ms, expected at most " + MAX_SLICE + " ms",
+                maxSlice <= MAX_SLICE);
+    }
+
+    /**
+     * pumps the EDT until the parsing is done and the queued markup is applied, the parsing runs either on a pooled
+     * thread or synchronously depending on how the test application handles background tasks
+     */
+    private void waitForHighlighting(Editor editor) throws InterruptedException {
+        ANSIHighlighter highlighter = getHighlighter();
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (highlighter.isParsing(editor) || !HighlightQueue.getInstance().isEmpty()) {
+            if(System.currentTimeMillis() > deadline) fail("highlighting did not complete within " + TIMEOUT + " ms");
+            UIUtil.dispatchAllInvocationEvents();
+            Thread.sleep(1);
+        }
+    }
+
+    private static int[] parseSequenceCounts(String counts) {
+        String[] values = counts.split(",");
+        int[] sequenceCounts = new int[values.length];
+        for(int i = 0; i < values.length; i++) {
+            sequenceCounts[i] = Integer.parseInt(values[i].trim());
+        }
+        return sequenceCounts;
+    }
+}
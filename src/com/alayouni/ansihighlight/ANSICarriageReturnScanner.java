@@ -0,0 +1,130 @@
+package com.alayouni.ansihighlight;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Documents get their line separators converted to <code>\n</code> on load, lone carriage returns included, so the
+ * carriage returns progress bars redraw their line with can't be told apart from line breaks in the document. This
+ * scanner finds them back in the raw bytes of the file, as offsets of the document's <code>\n</code> chars that
+ * stand for a lone <code>\r</code>, see {@link ANSIOverwriteCollapser}.
+ * <p>
+ *     Offsets are counted from the bytes without decoding them, which is only supported for UTF-8 and for ascii
+ *     compatible single byte charsets. Scanning can be resumed where it stopped once the file got appended to.
+ *     Callers are expected to check the offsets against the document, see {@link #matches(CharSequence, int[])}.
+ * </p>
+ */
+class ANSICarriageReturnScanner {
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final boolean utf8;
+    private long byteOffset = 0;
+    private int charOffset = 0;
+    //the last scan stopped right after a \r, reported as a lone one
+    private boolean endsWithCR = false;
+
+    private ANSICarriageReturnScanner(boolean utf8) {
+        this.utf8 = utf8;
+    }
+
+    /**
+     * @return null if offsets can't be counted from the bytes of the charset
+     */
+    static ANSICarriageReturnScanner create(Charset charset) {
+        if(StandardCharsets.UTF_8.equals(charset)) return new ANSICarriageReturnScanner(true);
+        if(!charset.canEncode() || !ANSIMappedFile.isSupported(charset) || charset.newEncoder().maxBytesPerChar() != 1) return null;
+        return new ANSICarriageReturnScanner(false);
+    }
+
+    ANSICarriageReturnScanner copy() {
+        ANSICarriageReturnScanner copy = new ANSICarriageReturnScanner(utf8);
+        copy.byteOffset = byteOffset;
+        copy.charOffset = charOffset;
+        copy.endsWithCR = endsWithCR;
+        return copy;
+    }
+
+    /**
+     * @return position in the file the next scan must start from
+     */
+    long getByteOffset() {
+        return byteOffset;
+    }
+
+    /**
+     * @return offset in the document matching {@link #getByteOffset()}
+     */
+    int getCharOffset() {
+        return charOffset;
+    }
+
+    /**
+     * @param in the file's content from {@link #getByteOffset()} on
+     * @return offsets of the lone carriage returns found, sorted
+     */
+    int[] scan(InputStream in) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int[] offsets = new int[16];
+        int count = 0, length, start = 0;
+        boolean cr = false;
+        if(utf8 && byteOffset == 0) {
+            //the byte order mark is not part of the document
+            length = fill(in, buffer, 3);
+            if(length >= 3 && (buffer[0] & 0xFF) == 0xEF && (buffer[1] & 0xFF) == 0xBB && (buffer[2] & 0xFF) == 0xBF) start = 3;
+        } else {
+            length = in.read(buffer);
+            //the \n completing a \r\n split across scans
+            if(endsWithCR && length > 0 && buffer[0] == '\n') start = 1;
+        }
+        for(; length > 0; length = in.read(buffer), start = 0) {
+            for(int i = start; i < length; i++) {
+                byte b = buffer[i];
+                if(cr) {
+                    cr = false;
+                    //\r\n is a single line break
+                    if(b == '\n') continue;
+                    if(count == offsets.length) offsets = Arrays.copyOf(offsets, count << 1);
+                    offsets[count++] = charOffset - 1;
+                }
+                if(b == '\r') {
+                    cr = true;
+                    charOffset++;
+                } else if(!utf8) {
+                    charOffset++;
+                } else if((b & 0xC0) != 0x80) {
+                    //4 bytes sequences decode to surrogate pairs
+                    charOffset += (b & 0xF8) == 0xF0 ? 2 : 1;
+                }
+            }
+            byteOffset += length;
+        }
+        //a trailing carriage return is a lone one as far as the current content is concerned
+        endsWithCR = cr;
+        if(cr) {
+            if(count == offsets.length) offsets = Arrays.copyOf(offsets, count + 1);
+            offsets[count++] = charOffset - 1;
+        }
+        return Arrays.copyOf(offsets, count);
+    }
+
+    /**
+     * @return true if the scan stopped at the end of <code>text</code> and all the offsets found point at line breaks,
+     * which rules out charset decoding mismatches
+     */
+    boolean matches(CharSequence text, int[] offsets) {
+        if(charOffset != text.length()) return false;
+        for(int offset : offsets) {
+            if(text.charAt(offset) != '\n') return false;
+        }
+        return true;
+    }
+
+    private static int fill(InputStream in, byte[] buffer, int min) throws IOException {
+        int length = 0, read;
+        while (length < min && (read = in.read(buffer, length, buffer.length - length)) > 0) length += read;
+        return length;
+    }
+}
@@ -8,6 +8,8 @@ import com.intellij.openapi.editor.markup.TextAttributes;
 import com.intellij.ui.JBColor;
 
 import java.awt.*;
+import java.util.ArrayList;
+import java.util.List;
 
 import static com.alayouni.ansihighlight.ANSIHighlighter.setupAllAttributesUnderline;
 
@@ -41,16 +43,15 @@ class ANSIColor {
 
     //______________________pre-calculations to accelerate parsing___________________________________
 
-    //see ANSIHighlighter#ALL_TEXT_ATTRIBUTES and ANSIHighlighter#ENCODER
-    private static final int FOREGROUND_START_CODE = 30;
-    private static final int FOREGROUND_END_CODE = 37;
+    private static ANSIColor[] ALL_COLORS = new ANSIColor[8];
 
-    private static final int BACKGROUND_START_CODE = 40;
-    private static final int BACKGROUND_END_CODE = 47;
+    //codes 90-97 and 100-107, and indexes 8-15 of the 256 colors palette
+    private static ANSIColor[] BRIGHT_COLORS = new ANSIColor[8];
 
-    private static ANSIColor[] ALL_COLORS = new ANSIColor[8];
+    //levels of each rgb component across the 6x6x6 cube of the 256 colors palette (indexes 16-231)
+    private static final int[] CUBE_LEVELS = {0, 95, 135, 175, 215, 255};
 
-    static EditorColorsScheme colorsScheme = EditorColorsManager.getInstance().getGlobalScheme();
+    static volatile EditorColorsScheme colorsScheme = EditorColorsManager.getInstance().getGlobalScheme();
 
     static void initAllANSIColors() {
         ALL_COLORS[0] = new ANSIColor(ConsoleHighlighter.BLACK, JBColor.BLACK, JBColor.BLACK);
@@ -61,21 +62,62 @@ class ANSIColor {
         ALL_COLORS[5] = new ANSIColor(ConsoleHighlighter.MAGENTA, JBColor.MAGENTA, JBColor.MAGENTA);
         ALL_COLORS[6] = new ANSIColor(ConsoleHighlighter.CYAN, JBColor.CYAN, JBColor.CYAN);
         ALL_COLORS[7] = new ANSIColor(ConsoleHighlighter.WHITE, JBColor.WHITE, JBColor.WHITE);
+
+        BRIGHT_COLORS[0] = new ANSIColor(ConsoleHighlighter.DARKGRAY, JBColor.DARK_GRAY, JBColor.DARK_GRAY);
+        BRIGHT_COLORS[1] = new ANSIColor(ConsoleHighlighter.RED_BRIGHT, JBColor.RED, JBColor.RED);
+        BRIGHT_COLORS[2] = new ANSIColor(ConsoleHighlighter.GREEN_BRIGHT, JBColor.GREEN, JBColor.GREEN);
+        BRIGHT_COLORS[3] = new ANSIColor(ConsoleHighlighter.YELLOW_BRIGHT, JBColor.YELLOW, JBColor.YELLOW);
+        BRIGHT_COLORS[4] = new ANSIColor(ConsoleHighlighter.BLUE_BRIGHT, JBColor.BLUE, JBColor.BLUE);
+        BRIGHT_COLORS[5] = new ANSIColor(ConsoleHighlighter.MAGENTA_BRIGHT, JBColor.MAGENTA, JBColor.MAGENTA);
+        BRIGHT_COLORS[6] = new ANSIColor(ConsoleHighlighter.CYAN_BRIGHT, JBColor.CYAN, JBColor.CYAN);
+        BRIGHT_COLORS[7] = new ANSIColor(ConsoleHighlighter.WHITE, JBColor.WHITE, JBColor.WHITE);
     }
 
-    static void setupColorsEncoders(ANSITextAttributesIDEncoder[] encoders) {
-        //see ANSIHighlighter#ALL_TEXT_ATTRIBUTES and ANSIHighlighter#ENCODER
-        int resetMask = 0xFFFFFF87;
-        for(int colorCode = FOREGROUND_START_CODE; colorCode <= FOREGROUND_END_CODE; colorCode ++) {
-            encoders[colorCode] = new ANSITextAttributesIDEncoder(resetMask, (colorCode - FOREGROUND_START_CODE + 1) << 3);
+    /**
+     * @return the foreground and background of each of the 8 standard colors, as resolved from the colors scheme
+     */
+    static List<Color> getPalette() {
+        List<Color> palette = new ArrayList<>(ALL_COLORS.length * 2);
+        for(ANSIColor color : ALL_COLORS) {
+            palette.add(color.getForegroundColor());
+            palette.add(color.getBackgroundColor());
         }
+        return palette;
+    }
 
-        //see ANSIHighlighter#ALL_TEXT_ATTRIBUTES and ANSIHighlighter#ENCODER
-        resetMask = 0xFFFFF87F;
-        for(int colorCode = BACKGROUND_START_CODE; colorCode <= BACKGROUND_END_CODE; colorCode ++) {
-            encoders[colorCode] = new ANSITextAttributesIDEncoder(resetMask, (colorCode - BACKGROUND_START_CODE + 1) << 7);
+    /**
+     * @return the {@link #getPalette() palette} followed by the bright colors and the scheme's default foreground and
+     * background, i.e. all the colors scheme's colors extended style keys depend on (see {@link ANSITextAttributesCache})
+     */
+    static List<Color> getExtendedPalette() {
+        List<Color> palette = getPalette();
+        for(ANSIColor color : BRIGHT_COLORS) {
+            palette.add(color.getForegroundColor());
+            palette.add(color.getBackgroundColor());
         }
+        palette.add(colorsScheme.getDefaultForeground());
+        palette.add(colorsScheme.getDefaultBackground());
+        return palette;
+    }
 
+    /**
+     * @param color a color as encoded under {@link ANSIStyleKey}
+     * @return the matching color, null if not set
+     */
+    static Color getColor(int color, boolean foreground) {
+        if(color == 0) return null;
+        if((color & ANSIStyleKey.TRUE_COLOR) != 0) return new Color(color & 0xFFFFFF);
+        int index = color - 1;
+        if(index < 16) {
+            ANSIColor ansiColor = index < 8 ? ALL_COLORS[index] : BRIGHT_COLORS[index - 8];
+            return foreground ? ansiColor.getForegroundColor() : ansiColor.getBackgroundColor();
+        }
+        if(index < 232) {
+            index -= 16;
+            return new Color(CUBE_LEVELS[index / 36], CUBE_LEVELS[(index / 6) % 6], CUBE_LEVELS[index % 6]);
+        }
+        int level = 8 + (index - 232) * 10;
+        return new Color(level, level, level);
     }
 
     static void setupAllAttributesForeground(TextAttributesOperation[] operations, int id) {
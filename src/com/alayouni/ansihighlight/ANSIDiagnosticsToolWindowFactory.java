@@ -0,0 +1,85 @@
+package com.alayouni.ansihighlight;
+
+import com.intellij.openapi.editor.Editor;
+import com.intellij.openapi.editor.EditorFactory;
+import com.intellij.openapi.fileEditor.FileDocumentManager;
+import com.intellij.openapi.ide.CopyPasteManager;
+import com.intellij.openapi.project.DumbAware;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.Disposer;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.openapi.wm.ToolWindow;
+import com.intellij.openapi.wm.ToolWindowFactory;
+import com.intellij.ui.components.JBScrollPane;
+import com.intellij.ui.content.Content;
+import com.intellij.ui.content.ContentFactory;
+import org.jetbrains.annotations.NotNull;
+
+import javax.swing.*;
+import java.awt.*;
+import java.awt.datatransfer.StringSelection;
+
+/**
+ * Diagnostics tool window reporting {@link ANSIHighlighterMetrics} along with the markup held by each ANSI aware
+ * editor of the project, refreshed every second while showing. The report can be copied to be attached to bug
+ * reports.
+ */
+public class ANSIDiagnosticsToolWindowFactory implements ToolWindowFactory, DumbAware {
+    private static final int REFRESH_DELAY = 1000;
+
+    //rough retained sizes of a range highlighter and of a fold region, interval tree nodes included
+    private static final int HIGHLIGHTER_BYTES = 120;
+    private static final int FOLD_REGION_BYTES = 140;
+
+    @Override
+    public void createToolWindowContent(@NotNull Project project, @NotNull ToolWindow toolWindow) {
+        JTextArea report = new JTextArea();
+        report.setEditable(false);
+        report.setFont(new Font(Font.MONOSPACED, Font.PLAIN, report.getFont().getSize()));
+
+        JButton copy = new JButton("Copy");
+        copy.addActionListener(e -> CopyPasteManager.getInstance().setContents(new StringSelection(report.getText())));
+        JButton reset = new JButton("Reset");
+        reset.addActionListener(e -> {
+            ANSIHighlighterMetrics.getInstance().reset();
+            report.setText(createReport(project));
+        });
+        JPanel buttons = new JPanel(new FlowLayout(FlowLayout.LEFT));
+        buttons.add(copy);
+        buttons.add(reset);
+
+        JPanel panel = new JPanel(new BorderLayout());
+        panel.add(buttons, BorderLayout.NORTH);
+        panel.add(new JBScrollPane(report), BorderLayout.CENTER);
+
+        Timer timer = new Timer(REFRESH_DELAY, e -> {
+            if(!project.isDisposed() && panel.isShowing()) report.setText(createReport(project));
+        });
+        timer.start();
+        Content content = ContentFactory.SERVICE.getInstance().createContent(panel, "", false);
+        Disposer.register(content, timer::stop);
+        toolWindow.getContentManager().addContent(content);
+    }
+
+    private static String createReport(Project project) {
+        StringBuilder report = new StringBuilder();
+        ANSIHighlighterMetrics.getInstance().appendReport(report);
+
+        report.append("Markup per editor (estimated)\n");
+        FileDocumentManager fdm = FileDocumentManager.getInstance();
+        for(Editor editor : EditorFactory.getInstance().getAllEditors()) {
+            VirtualFile file = fdm.getFile(editor.getDocument());
+            if(editor.getProject() != project || !ANSIAwareFileType.isANSIAware(file)) continue;
+            int highlighters = editor.getMarkupModel().getAllHighlighters().length;
+            int foldRegions = editor.getFoldingModel().getAllFoldRegions().length;
+            long bytes = (long) highlighters * HIGHLIGHTER_BYTES + (long) foldRegions * FOLD_REGION_BYTES;
+            report.append("  ").append(file.getName())
+                    .append(": ").append(highlighters).append(" highlighters")
+                    .append(", ").append(foldRegions).append(" fold regions")
+                    .append(", ~").append(bytes >> 10).append(" KB")
+                    .append(ANSIViewportHighlighter.getInstance(editor) != null ? " (lazy)\n" : "\n");
+        }
+        report.append("JFR events: ").append(ANSIHighlighterMetrics.isJFREnabled() ? "available" : "unavailable on this JVM").append('\n');
+        return report.toString();
+    }
+}
@@ -0,0 +1,32 @@
+package com.alayouni.ansihighlight;
+
+import com.intellij.openapi.editor.colors.EditorColorsScheme;
+import com.intellij.openapi.editor.ex.util.LexerEditorHighlighter;
+import com.intellij.openapi.editor.markup.TextAttributes;
+import com.intellij.psi.tree.IElementType;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Styles ansi aware editors from an incremental lexer instead of one range highlighter per styled run: the platform
+ * paints lazily and only re-lexes changed regions. Fold regions are still used to conceal the sequences.
+ * <p>
+ *     Text tokens are painted with the attributes pre-loaded by {@link ANSIHighlighter#preloadAllTextAttributes()}
+ *     rather than looked up in the scheme, they are updated in place on colors scheme changes.
+ * </p>
+ */
+class ANSIEditorHighlighter extends LexerEditorHighlighter {
+
+    ANSIEditorHighlighter(EditorColorsScheme scheme) {
+        super(new ANSISyntaxHighlighter(), scheme);
+    }
+
+    @NotNull
+    @Override
+    public TextAttributes getAttributes(IElementType tokenType) {
+        if(tokenType instanceof ANSITokenTypes.ANSITextElementType) {
+            int id = ((ANSITokenTypes.ANSITextElementType) tokenType).id;
+            if(id != 0) return ANSIHighlighter.getTextAttributes(id);
+        }
+        return super.getAttributes(tokenType);
+    }
+}
@@ -0,0 +1,176 @@
+package com.alayouni.ansihighlight;
+
+import com.intellij.openapi.editor.Editor;
+import com.intellij.openapi.editor.FoldRegion;
+import com.intellij.openapi.editor.RangeMarker;
+import com.intellij.openapi.editor.ex.FoldingModelEx;
+import com.intellij.openapi.editor.ex.RangeHighlighterEx;
+import com.intellij.openapi.editor.markup.MarkupModel;
+import com.intellij.openapi.editor.markup.RangeHighlighter;
+import com.intellij.openapi.util.Key;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Markup this plugin created on an editor, so that cleanups leave the markup of other plugins alone and remove it in
+ * time-budgeted batches through {@link HighlightQueue} (see {@link MarkupRemovalTaskData}) instead of all at once.
+ * <p>
+ *     Highlight tasks of an editor wait for its pending removals to complete: a pass started right after a cleanup
+ *     would otherwise get its fold regions rejected as duplicates of regions about to be removed. Markup applied
+ *     outside of the queue (see {@link ANSIViewportHighlighter}) flushes the pending fold regions removals instead.
+ *     Markup materialized by {@link ANSIViewportHighlighter} is only handed over here once uninstalled.
+ * </p>
+ * <p>
+ *     Highlighters of extended style keys (see {@link HighlightRangeData#STYLE_KEY}) are tracked apart as well, they
+ *     are the only ones to swap on colors scheme changes.
+ * </p>
+ */
+class ANSIEditorMarkup {
+    private static final Key<ANSIEditorMarkup> EDITOR_MARKUP_KEY = Key.create("ansi-editor-markup");
+
+    private List<RangeHighlighter> highlighters = new ArrayList<>();
+    private List<FoldRegion> foldRegions = new ArrayList<>();
+    private List<RangeHighlighter> restyledHighlighters = new ArrayList<>();
+
+    private final List<MarkupRemovalTaskData> pendingRemovals = new ArrayList<>(1);
+
+    private ANSIEditorMarkup() {}
+
+    static ANSIEditorMarkup getInstance(Editor editor) {
+        ANSIEditorMarkup markup = editor.getUserData(EDITOR_MARKUP_KEY);
+        if(markup == null) {
+            markup = new ANSIEditorMarkup();
+            editor.putUserData(EDITOR_MARKUP_KEY, markup);
+        }
+        return markup;
+    }
+
+    static boolean isRemovalPending(Editor editor) {
+        ANSIEditorMarkup markup = editor.getUserData(EDITOR_MARKUP_KEY);
+        return markup != null && !markup.pendingRemovals.isEmpty();
+    }
+
+    void added(RangeHighlighter highlighter) {
+        highlighters.add(highlighter);
+        if(highlighter.getUserData(HighlightRangeData.STYLE_KEY) != null) restyledHighlighters.add(highlighter);
+    }
+
+    void added(FoldRegion region) {
+        foldRegions.add(region);
+    }
+
+    /**
+     * takes over markup materialized outside of the queue, null entries are skipped
+     */
+    void adopt(RangeHighlighter[] highlighters, FoldRegion[] foldRegions) {
+        for(RangeHighlighter highlighter : highlighters) {
+            if(highlighter != null) added(highlighter);
+        }
+        for(FoldRegion region : foldRegions) {
+            if(region != null) this.foldRegions.add(region);
+        }
+    }
+
+    /**
+     * queues the removal of the owned highlighters, and of the owned fold regions as well unless
+     * <code>keepFoldRegions</code>. Markup added from then on is tracked apart from the markup being removed.
+     */
+    void removeAll(Editor editor, boolean keepFoldRegions) {
+        List<FoldRegion> removedFoldRegions = keepFoldRegions ? Collections.emptyList() : foldRegions;
+        if(highlighters.isEmpty() && removedFoldRegions.isEmpty()) return;
+        MarkupRemovalTaskData task = new MarkupRemovalTaskData(editor, this, highlighters, removedFoldRegions);
+        highlighters = new ArrayList<>();
+        restyledHighlighters = new ArrayList<>();
+        if(!keepFoldRegions) foldRegions = new ArrayList<>();
+        pendingRemovals.add(task);
+        HighlightQueue.getInstance().addTask(task);
+    }
+
+    /**
+     * removes right away the owned markup overlapping <code>[from, to)</code>, along with markup invalidated by edits.
+     * Meant for the small windows repaired after an edit, see {@link ANSIIncrementalParser}.
+     */
+    void removeWithin(Editor editor, int from, int to) {
+        MarkupModel markupModel = editor.getMarkupModel();
+        int kept = 0;
+        for(RangeHighlighter highlighter : highlighters) {
+            if(highlighter.isValid() && !overlaps(highlighter, from, to)) {
+                highlighters.set(kept++, highlighter);
+            } else if(highlighter.isValid()) {
+                markupModel.removeHighlighter(highlighter);
+            }
+        }
+        highlighters.subList(kept, highlighters.size()).clear();
+        removeInvalid(restyledHighlighters);
+
+        if(!(editor.getFoldingModel() instanceof FoldingModelEx)) return;
+        FoldingModelEx fm = (FoldingModelEx) editor.getFoldingModel();
+        fm.runBatchFoldingOperation(() -> {
+            int keptRegions = 0;
+            for(FoldRegion region : foldRegions) {
+                if(region.isValid() && !overlaps(region, from, to)) {
+                    foldRegions.set(keptRegions++, region);
+                } else if(region.isValid()) {
+                    fm.removeFoldRegion(region);
+                }
+            }
+            foldRegions.subList(keptRegions, foldRegions.size()).clear();
+        }, false);
+    }
+
+    /**
+     * ranges collapsed by an edit overlap the window they lie within
+     */
+    private static boolean overlaps(RangeMarker marker, int from, int to) {
+        return marker.getStartOffset() < to && (marker.getEndOffset() > from ||
+                marker.getStartOffset() == marker.getEndOffset() && marker.getStartOffset() >= from);
+    }
+
+    /**
+     * swaps the attributes of the owned highlighters of extended style keys to those of the current colors scheme,
+     * see {@link ANSIHighlighter#refreshTextAttributes}
+     */
+    void refreshTextAttributes() {
+        removeInvalid(restyledHighlighters);
+        for(RangeHighlighter highlighter : restyledHighlighters) {
+            refreshTextAttributes(highlighter);
+        }
+    }
+
+    static void refreshTextAttributes(RangeHighlighter highlighter) {
+        Long key = highlighter.getUserData(HighlightRangeData.STYLE_KEY);
+        if(key != null && highlighter instanceof RangeHighlighterEx) {
+            ((RangeHighlighterEx) highlighter).setTextAttributes(ANSIHighlighter.getTextAttributes(key));
+        }
+    }
+
+    /**
+     * drops highlighters removed by edits, they are not tracked any longer
+     */
+    private static void removeInvalid(List<RangeHighlighter> highlighters) {
+        int kept = 0;
+        for(RangeHighlighter highlighter : highlighters) {
+            if(highlighter.isValid()) highlighters.set(kept++, highlighter);
+        }
+        highlighters.subList(kept, highlighters.size()).clear();
+    }
+
+    void removalCompleted(MarkupRemovalTaskData task) {
+        pendingRemovals.remove(task);
+    }
+
+    /**
+     * removes right away the fold regions still queued for removal, highlighters are left to the queue
+     */
+    void flushFoldRegionRemovals(Editor editor) {
+        if(pendingRemovals.isEmpty() || !(editor.getFoldingModel() instanceof FoldingModelEx)) return;
+        FoldingModelEx fm = (FoldingModelEx) editor.getFoldingModel();
+        fm.runBatchFoldingOperation(() -> {
+            for(MarkupRemovalTaskData task : pendingRemovals) {
+                task.removeAllFoldRegions(fm);
+            }
+        }, false);
+    }
+}
@@ -0,0 +1,88 @@
+package com.alayouni.ansihighlight;
+
+import jdk.jfr.*;
+
+/**
+ * Custom JFR events of the highlighting phases, only loaded by {@link ANSIHighlighterMetrics} on JVMs shipping the
+ * <code>jdk.jfr</code> API. Events are recorded under the "ANSI Highlighter" category once enabled in the recording
+ * settings, and are skipped at the cost of a flag check otherwise.
+ */
+class ANSIFlightRecorderEvents {
+    private ANSIFlightRecorderEvents() {}
+
+    static void parsed(int chars, int sequences, long nanos) {
+        ParseEvent event = new ParseEvent();
+        if(!event.isEnabled()) return;
+        event.chars = chars;
+        event.sequences = sequences;
+        event.parseTime = nanos;
+        event.commit();
+    }
+
+    static void sliceRan(long nanos, int turns, int queueDepth) {
+        SliceEvent event = new SliceEvent();
+        if(!event.isEnabled()) return;
+        event.sliceTime = nanos;
+        event.turns = turns;
+        event.queueDepth = queueDepth;
+        event.commit();
+    }
+
+    static void markupApplied(boolean foldRegions, int count, long nanos) {
+        MarkupEvent event = new MarkupEvent();
+        if(!event.isEnabled()) return;
+        event.foldRegions = foldRegions;
+        event.count = count;
+        event.applyTime = nanos;
+        event.commit();
+    }
+
+    @Name("com.alayouni.ansihighlight.Parse")
+    @Label("ANSI Parse")
+    @Category("ANSI Highlighter")
+    @StackTrace(false)
+    static class ParseEvent extends Event {
+        @Label("Chars Scanned")
+        int chars;
+
+        @Label("Sequences Found")
+        int sequences;
+
+        @Label("Parse Time")
+        @Timespan(Timespan.NANOSECONDS)
+        long parseTime;
+    }
+
+    @Name("com.alayouni.ansihighlight.Slice")
+    @Label("ANSI EDT Slice")
+    @Category("ANSI Highlighter")
+    @StackTrace(false)
+    static class SliceEvent extends Event {
+        @Label("Slice Time")
+        @Timespan(Timespan.NANOSECONDS)
+        long sliceTime;
+
+        @Label("Turns")
+        int turns;
+
+        @Label("Queue Depth")
+        int queueDepth;
+    }
+
+    @Name("com.alayouni.ansihighlight.Markup")
+    @Label("ANSI Markup Batch")
+    @Category("ANSI Highlighter")
+    @StackTrace(false)
+    static class MarkupEvent extends Event {
+        @Label("Fold Regions")
+        @Description("true for a fold batch, false for range highlighter inserts")
+        boolean foldRegions;
+
+        @Label("Count")
+        int count;
+
+        @Label("Apply Time")
+        @Timespan(Timespan.NANOSECONDS)
+        long applyTime;
+    }
+}
@@ -0,0 +1,145 @@
+package com.alayouni.ansihighlight;
+
+import com.intellij.openapi.application.PathManager;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.vfs.VirtualFile;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Persists the full parse results of large files under the IDE system directory, so that reopening an unchanged
+ * file (typically an archived log) loads its run tables from a memory-mapped file instead of scanning its text again.
+ * <p>
+ *     Each file gets its own index file, named after a hash of its path. An entry is only valid for the file path,
+ *     length and timestamp it was written for, as well as for the parser version ({@link ANSIParser#VERSION}) and the
+ *     document length, anything else is a miss. Index files are evicted least recently used first once their total
+ *     size exceeds {@link #MAX_TOTAL_SIZE}, and a failure to read or write an index file is never more than a miss.
+ * </p>
+ */
+class ANSIHighlightIndex {
+    private static final Logger LOG = Logger.getInstance(ANSIHighlightIndex.class);
+
+    private static final int MAGIC = 0x414E5349;
+    private static final int FORMAT_VERSION = 3;
+
+    /**
+     * files shorter than this (in MB, <code>ansi.highlighter.index.min.mb</code> system property) parse faster than
+     * their index would load, they are not indexed
+     */
+    private static final long MIN_FILE_LENGTH = (long) Integer.getInteger("ansi.highlighter.index.min.mb", 4) << 20;
+
+    /**
+     * cap on the total size of the index files (in MB, <code>ansi.highlighter.index.max.mb</code> system property)
+     */
+    private static final long MAX_TOTAL_SIZE = (long) Integer.getInteger("ansi.highlighter.index.max.mb", 512) << 20;
+
+    private static final String EXTENSION = ".idx";
+
+    private ANSIHighlightIndex() {}
+
+    static boolean isIndexable(VirtualFile file) {
+        return file != null && file.isInLocalFileSystem() && file.getLength() >= MIN_FILE_LENGTH;
+    }
+
+    /**
+     * @param fileLength the length of the file at the time its text got loaded, same goes for the timestamp
+     * @param textLength length of the document loaded from the file, its offsets are the ones the tables refer to
+     * @return the indexed result of a full parse of the file, null if the file has no valid entry
+     */
+    static ANSIParseCache.Result load(VirtualFile file, long fileLength, long fileTimeStamp, int textLength, int windowStart) {
+        File indexFile = getIndexFile(file);
+        if(!indexFile.isFile()) return null;
+        try (RandomAccessFile raf = new RandomAccessFile(indexFile, "r"); FileChannel channel = raf.getChannel()) {
+            MappedByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if(!readHeader(in, file.getPath(), fileLength, fileTimeStamp, textLength, windowStart)) return null;
+            int resumeOffset = in.getInt();
+            long lastKey = in.getLong();
+            ANSIRunTable runs = ANSIRunTable.read(in);
+            //last modified time stands for last access time, see evictLeastRecentlyUsed
+            indexFile.setLastModified(System.currentTimeMillis());
+            return new ANSIParseCache.Result(runs, resumeOffset, lastKey, windowStart);
+        } catch (IOException | RuntimeException e) {
+            LOG.debug("dropping unreadable ansi highlight index " + indexFile, e);
+            indexFile.delete();
+            return null;
+        }
+    }
+
+    /**
+     * @see #load(VirtualFile, long, long, int, int)
+     */
+    static void store(VirtualFile file, long fileLength, long fileTimeStamp, int textLength, ANSIParseCache.Result result) {
+        File indexFile = getIndexFile(file);
+        File dir = indexFile.getParentFile();
+        File tmp = null;
+        try {
+            if(!dir.isDirectory() && !dir.mkdirs()) return;
+            tmp = File.createTempFile("ansi", ".tmp", dir);
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16))) {
+                out.writeInt(MAGIC);
+                out.writeInt(FORMAT_VERSION);
+                out.writeInt(ANSIParser.VERSION);
+                out.writeUTF(file.getPath());
+                out.writeLong(fileLength);
+                out.writeLong(fileTimeStamp);
+                out.writeInt(textLength);
+                out.writeInt(result.windowStart);
+                out.writeInt(result.resumeOffset);
+                out.writeLong(result.lastKey);
+                result.runs.write(out);
+            }
+            //readers never see a partially written index
+            Files.move(tmp.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            LOG.debug("failed to write ansi highlight index " + indexFile, e);
+            if(tmp != null) tmp.delete();
+            return;
+        }
+        evictLeastRecentlyUsed(dir, indexFile);
+    }
+
+    private static boolean readHeader(ByteBuffer in, String filePath, long fileLength, long fileTimeStamp, int textLength,
+                                      int windowStart) {
+        if(in.getInt() != MAGIC || in.getInt() != FORMAT_VERSION || in.getInt() != ANSIParser.VERSION) return false;
+        int pathLength = in.getShort() & 0xFFFF;
+        byte[] path = new byte[pathLength];
+        in.get(path);
+        //writeUTF's modified UTF-8 matches standard UTF-8 except for NUL and supplementary chars, which makes a
+        //path using them miss
+        if(!filePath.equals(new String(path, StandardCharsets.UTF_8))) return false;
+        return in.getLong() == fileLength && in.getLong() == fileTimeStamp &&
+                in.getInt() == textLength && in.getInt() == windowStart;
+    }
+
+    private static void evictLeastRecentlyUsed(File dir, File keep) {
+        File[] indexFiles = dir.listFiles((d, name) -> name.endsWith(EXTENSION));
+        if(indexFiles == null) return;
+        long total = 0;
+        for(File indexFile : indexFiles) {
+            total += indexFile.length();
+        }
+        if(total <= MAX_TOTAL_SIZE) return;
+        Arrays.sort(indexFiles, Comparator.comparingLong(File::lastModified));
+        for(File indexFile : indexFiles) {
+            if(total <= MAX_TOTAL_SIZE) break;
+            if(indexFile.equals(keep)) continue;
+            long length = indexFile.length();
+            if(indexFile.delete()) total -= length;
+        }
+    }
+
+    private static File getIndexFile(VirtualFile file) {
+        String path = file.getPath();
+        //two 32 bits hashes to make collisions unlikely, they are detected anyway through the path in the header
+        String name = Integer.toHexString(path.hashCode()) + Integer.toHexString(new StringBuilder(path).reverse().toString().hashCode());
+        return new File(new File(PathManager.getSystemPath(), "ansi-highlight-index"), name + EXTENSION);
+    }
+}
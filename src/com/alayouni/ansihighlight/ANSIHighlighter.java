@@ -2,183 +2,646 @@ package com.alayouni.ansihighlight;
 
 import com.intellij.openapi.application.Application;
 import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.editor.Document;
 import com.intellij.openapi.editor.Editor;
-import com.intellij.openapi.editor.FoldRegion;
+import com.intellij.openapi.editor.EditorFactory;
+import com.intellij.openapi.editor.colors.EditorColorsManager;
+import com.intellij.openapi.editor.event.DocumentEvent;
+import com.intellij.openapi.editor.ex.EditorEx;
 import com.intellij.openapi.editor.ex.FoldingModelEx;
+import com.intellij.openapi.editor.ex.util.LexerEditorHighlighter;
 import com.intellij.openapi.editor.markup.EffectType;
 import com.intellij.openapi.editor.markup.TextAttributes;
+import com.intellij.openapi.fileEditor.FileDocumentManager;
+import com.intellij.openapi.fileEditor.FileEditor;
+import com.intellij.openapi.fileEditor.FileEditorManager;
+import com.intellij.openapi.fileEditor.TextEditor;
+import com.intellij.openapi.fileTypes.PlainSyntaxHighlighter;
+import com.intellij.openapi.progress.ProcessCanceledException;
 import com.intellij.openapi.progress.ProgressIndicator;
 import com.intellij.openapi.progress.ProgressManager;
 import com.intellij.openapi.progress.Task;
 import com.intellij.openapi.project.Project;
-import com.intellij.openapi.util.Pair;
+import com.intellij.openapi.util.Computable;
+import com.intellij.openapi.util.Key;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.util.text.CharArrayUtil;
 import org.jetbrains.annotations.NotNull;
 
 import java.awt.*;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
 
 /**
  * Created by alayouni on 5/12/17.
  */
 public class ANSIHighlighter {
-    private static final String ESC = "\u001B[";
-    private static final char SEQ_END = 'm';
-    private static final char SEQ_DELIM = ';';
+    private static final Key<FollowState> FOLLOW_STATE_KEY = Key.create("ansi-follow-state");
 
-    private static final int RESET = 0;
+    /**
+     * Optional cap (in MB, set through the <code>ansi.highlighter.follow.window.mb</code> system property) on the
+     * trailing part of a followed file that gets highlighted, 0 (the default) highlights the whole file.
+     */
+    private static final int FOLLOW_WINDOW = Integer.getInteger("ansi.highlighter.follow.window.mb", 0) << 20;
+
+    /**
+     * files (or appended tails) larger than this (in MB, <code>ansi.highlighter.carriage.returns.max.mb</code> system
+     * property) are not scanned for carriage returns, see {@link ANSICarriageReturnScanner}
+     */
+    private static final long CARRIAGE_RETURNS_MAX_SCAN = (long) Integer.getInteger("ansi.highlighter.carriage.returns.max.mb", 64) << 20;
 
-    private static final int BOLD = 1;
-    private static final int ITALIC = 3;
-    private static final int UNDERLINE = 4;
+    private final HighlightQueue queue = HighlightQueue.getInstance();
 
-    private HighlightQueue queue = new HighlightQueue();
+    private final ANSIMarkupBudget budget = new ANSIMarkupBudget();
 
     private final Project project;
 
     private final Application application;
 
-    private volatile long backgroundProcessId = 0;
-
-
     public ANSIHighlighter(Project project) {
         this.project = project;
         this.application = ApplicationManager.getApplication();
         preloadAllTextAttributes();
     }
 
+    /**
+     * Cancels the highlighting in progress and queues the removal of the markup created so far, see
+     * {@link ANSIEditorMarkup}. The markup of other plugins is left untouched.
+     */
     public void cleanupHighlights(Editor editor) {
+        application.assertIsDispatchThread();
+        cancelHighlighting(editor);
+        ANSIEditorMarkup.getInstance(editor).removeAll(editor, false);
+    }
+
+    /**
+     * Cancels the parsing in flight for the editor if any, and drops whatever is left to apply. Markup already applied
+     * is left untouched, which makes it suitable for editors being released.
+     */
+    public void cancelHighlighting(Editor editor) {
         application.assertIsDispatchThread();
         queue.removeEditorHighlightTaskIfQueed(editor);
-        //update process id to cancel any ongoing highlight tasks on this editor
-        editor.getMarkupModel().removeAllHighlighters();
-        if(!(editor.getFoldingModel() instanceof FoldingModelEx)) return;
-        FoldingModelEx fm = (FoldingModelEx) editor.getFoldingModel();
-        fm.runBatchFoldingOperation(fm::clearFoldRegions, false);
+        ANSIViewportHighlighter.uninstall(editor);
+        budget.released(editor);
+        FollowState state = editor.getUserData(FOLLOW_STATE_KEY);
+        if(state != null) state.canceled = true;
+        editor.putUserData(FOLLOW_STATE_KEY, null);
     }
 
     public void highlightANSISequences(Editor editor) {
         application.assertIsDispatchThread();
-        //increment id to gracefully neutralize and end other EDT scheduled highlight tasks
+        //cancels the highlight task in flight for this editor, if any
         cleanupHighlights(editor);
 
-        ProgressManager.getInstance().run(new HighlightTask(editor));
-    }
-
-    private Pair<List<HighlightRangeData>, List<FoldRegion>> parseHighlights(Editor editor) {
-        String text = editor.getDocument().getText();
-        int escIndex = text.indexOf(ESC),
-                start0 = 0;
-        if(escIndex == -1) return null;
-
-        HighlightRangeData range = new HighlightRangeData();
-        range.start = escIndex;
-        int id0 = -1;
-        FoldingModelEx foldingModel = (FoldingModelEx) editor.getFoldingModel();
-        FoldRegion foldRegion;
-        List<FoldRegion> foldRegions = new ArrayList<>();
-        List<HighlightRangeData> highlighters = new ArrayList<>();
-        while (range.start >= 0) {
-            extractTextAttributesFromANSIEscapeSequence(text, range);
-            if(range.id == -1) {
-                range.start = range.end < text.length() ? text.indexOf(ESC, range.end) : -1;
-            } else {
-                if(id0 > 0) {
-                    highlighters.add(new HighlightRangeData(start0, range.start, id0));
-                }
-                foldRegion = foldingModel.createFoldRegion(range.start, range.end, "", null, true);
-                foldRegions.add(foldRegion);
+        FollowState state = new FollowState();
+        editor.putUserData(FOLLOW_STATE_KEY, state);
+        budget.touched(editor);
+        ProgressManager.getInstance().run(new HighlightTask(editor, state, 0, 0));
+    }
 
-                start0 = range.end;
-                if(start0 == text.length()) break;
-                id0 = range.id == 0 ? -1 : range.id;
-                range.start = text.indexOf(ESC, start0);
-            }
-            if(range.start == -1 && id0 > 0) {
-                highlighters.add(new HighlightRangeData(start0, text.length(), id0));
-            }
+    /**
+     * Follow mode: when the document only got appended to since it was last highlighted (typically a log file
+     * reloaded while being written to), only the appended tail gets parsed and highlighted, starting from the
+     * attributes in effect at the previous end and from the last sequence if it was still being written.
+     * Falls back to {@link #highlightANSISequences(Editor)} otherwise.
+     */
+    public void highlightAppendedANSISequences(Editor editor) {
+        application.assertIsDispatchThread();
+        FollowState state = editor.getUserData(FOLLOW_STATE_KEY);
+        if(state == null || !state.valid || editor.getDocument().getTextLength() < state.resumeOffset ||
+                isFollowWindowExceeded(editor, state)) {
+            highlightANSISequences(editor);
+            return;
         }
-        return Pair.create(highlighters, foldRegions);
+        if(state.pending) {
+            //coalesce reloads happening while the previous tail is being parsed
+            state.reloadedWhilePending = true;
+            return;
+        }
+        state.pending = true;
+        ProgressManager.getInstance().run(new HighlightTask(editor, state, state.resumeOffset, state.lastKey));
     }
 
+    /**
+     * Plain mode: hides the markup while keeping the parsed runs around, so that {@link #showHighlights(Editor)} only
+     * has to restore the highlighters as long as the document remains unchanged. Fold regions are kept and merely
+     * disabled, except for lazily materialized ones which are cheap to rebuild. Falls back to
+     * {@link #cleanupHighlights(Editor)} while the highlighting is still in progress.
+     */
+    public void hideHighlights(Editor editor) {
+        application.assertIsDispatchThread();
+        FollowState state = editor.getUserData(FOLLOW_STATE_KEY);
+        if(state == null || state.pending || state.runs == null || queue.hasEditorHighlightTask(editor) ||
+                !(editor.getFoldingModel() instanceof FoldingModelEx)) {
+            cleanupHighlights(editor);
+            return;
+        }
+        state.hidden = true;
+        state.lazy = ANSIViewportHighlighter.getInstance(editor) != null;
+        ANSIViewportHighlighter.uninstall(editor);
+        ANSIEditorMarkup.getInstance(editor).removeAll(editor, !state.lazy);
+        ((FoldingModelEx) editor.getFoldingModel()).setFoldingEnabled(false);
+    }
 
-    private void extractTextAttributesFromANSIEscapeSequence(String text, HighlightRangeData range) {
-        range.end = range.start;
-        ANSITextAttributesIDEncoder encoder;
-        range.id = 0;
-        while (range.end < text.length() && text.startsWith(ESC, range.end)) {
-            range.end += ESC.length();
-            do {
-                encoder = parseANSICode(text, range);
-                if(encoder == null) {
-                    range.id = -1;
-                    return;
-                }
-                range.id = encoder.encode(range.id);
-            } while(text.charAt(range.end - 1) == SEQ_DELIM);
+    /**
+     * Leaves plain mode, see {@link #hideHighlights(Editor)}, re-highlighting from scratch if the document changed
+     * in the meantime or if overwritten output got collapsed. Also restores the markup released by
+     * {@link #evictHighlights(Editor)}.
+     */
+    public void showHighlights(Editor editor) {
+        application.assertIsDispatchThread();
+        if(editor.getFoldingModel() instanceof FoldingModelEx) ((FoldingModelEx) editor.getFoldingModel()).setFoldingEnabled(true);
+        FollowState state = editor.getUserData(FOLLOW_STATE_KEY);
+        //collapsed runs are not kept, see ANSIOverwriteCollapser
+        if(state == null || !state.hidden || !state.valid || state.collapsed || editor.getDocument().getModificationStamp() != state.stamp) {
+            highlightANSISequences(editor);
+            return;
+        }
+        state.hidden = false;
+        boolean evicted = state.evicted;
+        state.evicted = false;
+        if(state.lazy) {
+            ANSIRunTable runs = isStyledByLexer(editor) ? state.runs.withExtendedStylesOnly() : state.runs.copy();
+            ANSIViewportHighlighter.install(editor, runs, ALL_ATTRIBUTES);
+        } else {
+            //fold regions of evicted editors are gone as well
+            ANSIRunTable runs = !evicted ? state.runs.withStylesOnly(isStyledByLexer(editor)) :
+                    isStyledByLexer(editor) ? state.runs.withExtendedStylesOnly() : state.runs;
+            if(!runs.isEmpty()) queue.addNewTask(editor, runs, ALL_ATTRIBUTES);
         }
     }
 
-    private ANSITextAttributesIDEncoder parseANSICode(String text, HighlightRangeData range) {
-        int code = 0, d;
-        boolean atLeastOneDigit = false;
-        char c;
-        while (range.end < text.length()) {
-            c = text.charAt(range.end ++);
-            if(c == SEQ_DELIM || c == SEQ_END){
-                if(!atLeastOneDigit) return ANSITextAttributesIDEncoder.UNSUPPORTED_CODE_ENCODER;
-                return (code < ENCODER.length) ? ENCODER[code] : ANSITextAttributesIDEncoder.UNSUPPORTED_CODE_ENCODER;
+    /**
+     * Releases all the markup of an editor out of sight, fold regions included, keeping only the parsed runs so that
+     * {@link #showHighlights(Editor)} can apply it again once the editor gets selected, see {@link ANSIMarkupBudget}.
+     * Editors in plain mode stay so, only their disabled fold regions get released.
+     * @return false if the editor's highlighting is still in progress
+     */
+    boolean evictHighlights(Editor editor) {
+        application.assertIsDispatchThread();
+        FollowState state = editor.getUserData(FOLLOW_STATE_KEY);
+        if(state == null || state.pending || state.runs == null || state.evicted || queue.hasEditorHighlightTask(editor)) {
+            return false;
+        }
+        if(!state.hidden) {
+            state.hidden = true;
+            state.lazy = ANSIViewportHighlighter.getInstance(editor) != null;
+            ANSIViewportHighlighter.uninstall(editor);
+        }
+        state.evicted = true;
+        ANSIEditorMarkup.getInstance(editor).removeAll(editor, false);
+        return true;
+    }
+
+    /**
+     * Restores the markup of an evicted editor getting selected, unless it is in plain mode, then releases the markup
+     * of the editors out of sight if the budget is exceeded, see {@link ANSIMarkupBudget}.
+     * @param previewMode false if the editor is in plain mode
+     */
+    public void editorSelected(Editor editor, boolean previewMode) {
+        application.assertIsDispatchThread();
+        FollowState state = editor.getUserData(FOLLOW_STATE_KEY);
+        if(state == null) return;
+        budget.touched(editor);
+        if(state.evicted && previewMode) showHighlights(editor);
+        enforceBudget();
+    }
+
+    private void enforceBudget() {
+        FileEditorManager manager = FileEditorManager.getInstance(project);
+        List<Editor> visible = textEditorsOf(manager.getSelectedEditors());
+        //other editors, e.g. of diff viewers, would never get their markup back
+        List<Editor> tabs = textEditorsOf(manager.getAllEditors());
+        budget.enforce(visible, ANSIHighlighter::getMarkupWeight, editor -> tabs.contains(editor) && evictHighlights(editor));
+    }
+
+    private static List<Editor> textEditorsOf(FileEditor[] fileEditors) {
+        List<Editor> editors = new ArrayList<>(fileEditors.length);
+        for(FileEditor fileEditor : fileEditors) {
+            if(fileEditor instanceof TextEditor) editors.add(((TextEditor) fileEditor).getEditor());
+        }
+        return editors;
+    }
+
+    /**
+     * @return the number of highlighters and fold regions the editor holds once its queued markup is applied
+     */
+    private static int getMarkupWeight(Editor editor) {
+        FollowState state = editor.getUserData(FOLLOW_STATE_KEY);
+        if(state == null || state.runs == null || state.evicted) return 0;
+        ANSIViewportHighlighter viewportHighlighter = ANSIViewportHighlighter.getInstance(editor);
+        if(viewportHighlighter != null) return viewportHighlighter.getMaterializedCount() + state.runs.getLinkCount();
+        //disabled fold regions are kept in plain mode, unless lazily materialized
+        if(state.hidden) return state.lazy ? 0 : state.runs.getConcealedCount();
+        return state.runs.getStyleCount() + state.runs.getConcealedCount() + state.runs.getLinkCount();
+    }
+
+    /**
+     * @return true while the editor's last highlight pass is still being parsed, its markup may still be queued
+     * though, see {@link HighlightQueue}
+     */
+    boolean isParsing(Editor editor) {
+        FollowState state = editor.getUserData(FOLLOW_STATE_KEY);
+        return state != null && state.pending;
+    }
+
+    /**
+     * Re-skins the markup in place after {@link #preloadAllTextAttributes()} picked up a new colors scheme, without
+     * parsing again: highlighters of legacy ids share the pre-loaded instances which get updated in place, others are
+     * swapped to the attributes of the style key they carry. Only those tracked by {@link ANSIEditorMarkup} and
+     * the ones materialized by {@link ANSIViewportHighlighter} are visited, rather than the whole markup model which
+     * also holds other plugins' markup. Fold regions are left untouched.
+     * <p>
+     *     Highlighters still queued (see {@link HighlightQueue}) pick up the new attributes once applied.
+     * </p>
+     */
+    public void refreshTextAttributes(Editor editor) {
+        application.assertIsDispatchThread();
+        ANSIEditorMarkup.getInstance(editor).refreshTextAttributes();
+        ANSIViewportHighlighter viewportHighlighter = ANSIViewportHighlighter.getInstance(editor);
+        if(viewportHighlighter != null) viewportHighlighter.refreshTextAttributes();
+        editor.getContentComponent().repaint();
+    }
+
+    /**
+     * Switches the editor between {@link ANSIEditorHighlighter}, which styles the text from an incremental lexer,
+     * and a plain text highlighter.
+     */
+    public void setStyledByLexer(Editor editor, boolean styled) {
+        application.assertIsDispatchThread();
+        if(!(editor instanceof EditorEx) || isStyledByLexer(editor) == styled) return;
+        EditorEx editorEx = (EditorEx) editor;
+        editorEx.setHighlighter(styled ? new ANSIEditorHighlighter(editor.getColorsScheme()) :
+                new LexerEditorHighlighter(new PlainSyntaxHighlighter(), editor.getColorsScheme()));
+    }
+
+    private static boolean isStyledByLexer(Editor editor) {
+        return editor instanceof EditorEx && ((EditorEx) editor).getHighlighter() instanceof ANSIEditorHighlighter;
+    }
+
+    /**
+     * Opens a read-only copy of the editor's document with all ansi sequences stripped out and styled from the parsed
+     * runs, so that it can be browsed without creating any fold region. See {@link ANSIStrippedPreview}.
+     */
+    public void openStrippedPreview(Editor editor) {
+        application.assertIsDispatchThread();
+        VirtualFile file = FileDocumentManager.getInstance().getFile(editor.getDocument());
+        if(file == null) return;
+        ProgressManager.getInstance().run(new StrippedPreviewTask(file, editor.getDocument(), editor.getCaretModel().getOffset()));
+    }
+
+    /**
+     * repairs the highlights of editors whose already highlighted content got changed (see
+     * {@link #repairHighlights(Editor, FollowState)}), or invalidates their follow mode if that's not possible, and
+     * keeps lazily highlighted editors in sync. A highlight task in flight over the changed content is canceled and a
+     * new one is started once the change is over, so that bursts of changes only get parsed once.
+     */
+    public void documentChanged(DocumentEvent e) {
+        ANSIParseCache.invalidate(e.getDocument());
+        for(Editor editor : EditorFactory.getInstance().getEditors(e.getDocument(), project)) {
+            FollowState state = editor.getUserData(FOLLOW_STATE_KEY);
+            if(state != null && e.getOffset() < Math.max(state.resumeOffset, state.scanEnd)) {
+                if(isRepairable(state, e)) {
+                    scheduleRepair(editor, state, e);
+                } else {
+                    state.valid = false;
+                    if(state.pending && !state.canceled) restartHighlighting(editor, state);
+                }
             }
-            d = c - '0';
-            if(d < 0 || d > 9) return null;
-            atLeastOneDigit = true;
-            if(code < ENCODER.length)
-                code = code * 10 + d;
+            ANSIViewportHighlighter viewportHighlighter = ANSIViewportHighlighter.getInstance(editor);
+            if(viewportHighlighter != null) viewportHighlighter.documentChanged(e);
         }
-        return null;
     }
 
-    private class HighlightTask extends Task.Backgroundable {
-        private volatile long taskId;
+    /**
+     * edits of the highlighted text get repaired by {@link ANSIIncrementalParser} once parsing completed, unless they
+     * fall before the follow window or the markup is hidden, see {@link #hideHighlights(Editor)}
+     */
+    private static boolean isRepairable(FollowState state, DocumentEvent e) {
+        return state.valid && !state.pending && !state.hidden && state.runs != null &&
+                e.getOffset() >= state.windowStart && e.getOffset() + e.getOldLength() <= state.resumeOffset;
+    }
 
+    /**
+     * shifts the runs along with the document and accumulates the edited range until the repair runs, edits are
+     * typically typed in bursts
+     */
+    private void scheduleRepair(Editor editor, FollowState state, DocumentEvent e) {
+        int offset = e.getOffset(), oldEnd = offset + e.getOldLength(), delta = e.getNewLength() - e.getOldLength();
+        if(state.runsShared) {
+            state.runs = state.runs.copy();
+            state.runsShared = false;
+        }
+        state.runs.shift(offset, e.getOldLength(), e.getNewLength());
+        state.resumeOffset += delta;
+        state.scanEnd += delta;
+        if(state.dirtyStart < 0) {
+            state.dirtyStart = offset;
+            state.dirtyEnd = offset + e.getNewLength();
+            //markup must not be touched from within a document change
+            application.invokeLater(() -> repairHighlights(editor, state));
+            return;
+        }
+        int dirtyEnd = state.dirtyEnd >= oldEnd ? state.dirtyEnd + delta : Math.min(state.dirtyEnd, offset);
+        state.dirtyEnd = Math.max(dirtyEnd, offset + e.getNewLength());
+        state.dirtyStart = Math.min(state.dirtyStart >= oldEnd ? state.dirtyStart + delta : state.dirtyStart, offset);
+    }
+
+    /**
+     * parses again the window affected by the edits and rebuilds its markup only, falls back to a full highlight
+     * when the window gets too large or when markup is still being applied or removed
+     */
+    private void repairHighlights(Editor editor, FollowState state) {
+        int dirtyStart = state.dirtyStart, dirtyEnd = state.dirtyEnd;
+        state.dirtyStart = -1;
+        if(editor.isDisposed() || editor.getUserData(FOLLOW_STATE_KEY) != state || !state.valid) return;
+        if(state.pending || state.hidden) {
+            //the edits were made invalid by a reload or a toggle in the meantime
+            state.valid = false;
+            return;
+        }
+        Document document = editor.getDocument();
+        CharSequence text = document.getImmutableCharSequence();
+        ANSIIncrementalParser parser = new ANSIIncrementalParser(text, CharArrayUtil.fromSequenceWithoutCopying(text));
+        long start = System.nanoTime();
+        ANSIRunTable window = parser.reparse(state.runs, dirtyStart, dirtyEnd);
+        if(window == null || state.collapsed || queue.hasEditorHighlightTask(editor) || ANSIEditorMarkup.isRemovalPending(editor)) {
+            highlightANSISequences(editor);
+            return;
+        }
+        int from = parser.getWindowStart(), to = parser.getWindowEnd();
+        ANSIHighlighterMetrics.getInstance().parsed(to - from, window.getConcealedCount(), System.nanoTime() - start);
+        //overwritten output is collapsed over whole lines and may reach lines above the window
+        int lineStart = document.getLineStartOffset(document.getLineNumber(from));
+        if(ANSIOverwriteCollapser.collapse(text, null, window, lineStart, to, null) != window) {
+            highlightANSISequences(editor);
+            return;
+        }
+
+        //markup of the runs crossing the window bounds gets rebuilt as well, those runs get clipped to the window
+        ANSIRunTable old = state.runs;
+        int first = old.firstStyleEndingAfter(from), last = old.firstStyleEndingAfter(to);
+        int markupFrom = first < old.getStyleCount() && old.getStyleStart(first) < from ? old.getStyleStart(first) : from;
+        int markupTo = last < old.getStyleCount() && old.getStyleStart(last) < to ? old.getStyleEnd(last) : to;
+
+        state.runs = old.splice(from, to, window);
+        state.stamp = document.getModificationStamp();
+        if(parser.isEndReached()) {
+            state.resumeOffset = parser.getResumeOffset();
+            state.lastKey = parser.getLastKey();
+        }
+
+        boolean styledByLexer = isStyledByLexer(editor);
+        ANSIViewportHighlighter viewportHighlighter = ANSIViewportHighlighter.getInstance(editor);
+        if(viewportHighlighter != null) {
+            viewportHighlighter.reset(styledByLexer ? state.runs.withExtendedStylesOnly() : state.runs.copy());
+        }
+        //the markup owned here is limited to hyperlinks in viewport mode
+        ANSIEditorMarkup.getInstance(editor).removeWithin(editor, markupFrom, markupTo);
+        ANSIRunTable runs = state.runs.slice(markupFrom, markupTo);
+        if(viewportHighlighter != null) runs = runs.withLinksOnly();
+        else if(styledByLexer) runs = runs.withExtendedStylesOnly();
+        if(!runs.isEmpty()) queue.addNewTask(editor, runs, ALL_ATTRIBUTES);
+    }
+
+    private void restartHighlighting(Editor editor, FollowState state) {
+        state.canceled = true;
+        //markup must not be touched from within a document change
+        application.invokeLater(() -> {
+            if(editor.isDisposed() || editor.getUserData(FOLLOW_STATE_KEY) != state) return;
+            highlightANSISequences(editor);
+        });
+    }
+
+    private boolean isFollowWindowExceeded(Editor editor, FollowState state) {
+        //highlights are only cleared on full passes, so a followed file is allowed to grow up to twice the window
+        return FOLLOW_WINDOW > 0 && editor.getDocument().getTextLength() - state.windowStart > 2 * FOLLOW_WINDOW;
+    }
+
+    private static class FollowState {
+        private boolean valid = true, pending = true, reloadedWhilePending = false;
+        private int resumeOffset, windowStart;
+        private long lastKey;
+
+        //all the runs applied so far, shared with ANSIParseCache until a tail gets appended or the document edited,
+        //see hideHighlights, evictHighlights and repairHighlights
+        private ANSIRunTable runs;
+        private boolean runsShared, hidden, lazy, evicted;
+
+        //range edited since the last repair, in current document offsets, -1 if none
+        private int dirtyStart = -1, dirtyEnd;
+
+        //where to resume looking for carriage returns in the file once appended to, null if not possible
+        private ANSICarriageReturnScanner carriageReturns;
+        //set once overwritten output got collapsed, the markup then no longer matches the runs
+        private boolean collapsed;
+
+        //set from background threads: the length of the text under parsing, and whether that parsing is wasted
+        private volatile int scanEnd;
+        //modification stamp of the text under parsing, see ANSIParseCache
+        private volatile long stamp;
+        private volatile boolean canceled = false;
+    }
+
+    private class HighlightTask extends Task.Backgroundable {
         private final Editor editor;
+        private final FollowState state;
+        private final int from;
+        private final long key0;
 
-        public HighlightTask(Editor editor) {
+        public HighlightTask(Editor editor, FollowState state, int from, long key0) {
             super(project, "Highlighting ANSI Sequences...", false);
             this.editor = editor;
+            this.state = state;
+            this.from = from;
+            this.key0 = key0;
         }
 
         @Override
         public void run(@NotNull ProgressIndicator indicator) {
-            Pair<List<HighlightRangeData>, List<FoldRegion>> result = parseHighlights(editor);
-            if(isEmptyHighlightResult(result)) return;
-            application.invokeAndWait(() -> {
-                taskId = ++backgroundProcessId;
-                queue.addNewTask(editor, result.first, result.second);
+            if(state.canceled) return;
+            Document document = editor.getDocument();
+            CharSequence text = takeSnapshot(document, state);
+            int windowStart = from == 0 && FOLLOW_WINDOW > 0 ? Math.max(0, text.length() - FOLLOW_WINDOW) : state.windowStart;
+            Supplier<ANSIParseCache.Result> parse = () -> {
+                ANSIParallelParser parser = newParser(text, () -> {
+                    if(state.canceled) throw new ProcessCanceledException();
+                    indicator.checkCanceled();
+                });
+                long start = System.nanoTime();
+                ANSIRunTable runs = parser.parse(from, key0, Math.max(from, windowStart));
+                ANSIHighlighterMetrics.getInstance().parsed(text.length() - from, runs.getConcealedCount(), System.nanoTime() - start);
+                return new ANSIParseCache.Result(runs, parser.getResumeOffset(), parser.getLastKey(), windowStart);
+            };
+            //full passes are shared with the other editors of the document, tails depend on each editor's state
+            ANSIParseCache.Result result = from == 0 ?
+                    ANSIParseCache.getOrParse(document, state.stamp, () -> loadOrParse(document, state.stamp, text, windowStart, parse)) :
+                    parse.get();
+
+            ANSICarriageReturnScanner scanner = from == 0 ? newCarriageReturnScanner(document) :
+                    state.carriageReturns == null ? null : state.carriageReturns.copy();
+            int[] carriageReturns = scanCarriageReturns(document, state.stamp, text, scanner);
+            ANSIRunTable display = ANSIOverwriteCollapser.collapse(text, CharArrayUtil.fromSequenceWithoutCopying(text),
+                    result.runs, Math.max(from, result.windowStart), text.length(), carriageReturns);
+            application.invokeLater(() -> {
+                //a full highlight or a cleanup took over since this task started
+                if(editor.isDisposed() || state.canceled || editor.getUserData(FOLLOW_STATE_KEY) != state) return;
+                state.resumeOffset = result.resumeOffset;
+                state.lastKey = result.lastKey;
+                state.windowStart = result.windowStart;
+                state.pending = false;
+                state.carriageReturns = carriageReturns == null ? null : scanner;
+                state.collapsed |= display != result.runs;
+                if(from == 0) {
+                    state.runs = result.runs;
+                    state.runsShared = true;
+                } else if(state.runs != null) {
+                    if(state.runsShared) state.runs = state.runs.copy();
+                    state.runsShared = false;
+                    state.runs.append(result.runs);
+                }
+                ANSIRunTable runs = isStyledByLexer(editor) ? display.withExtendedStylesOnly() : display;
+                //tails appended to evicted editors are applied along with the rest once selected again
+                if(!runs.isEmpty() && !state.evicted) {
+                    ANSIViewportHighlighter viewportHighlighter = ANSIViewportHighlighter.getInstance(editor);
+                    if(viewportHighlighter != null) {
+                        viewportHighlighter.append(runs);
+                    } else if(from == 0 && ANSIViewportHighlighter.isLazyModeWorthwhile(runs)) {
+                        //the viewport highlighter alters its table as the document changes, it can't be shared
+                        ANSIViewportHighlighter.install(editor, runs == result.runs ? runs.copy() : runs, ALL_ATTRIBUTES);
+                    } else {
+                        queue.addNewTask(editor, runs, ALL_ATTRIBUTES);
+                    }
+                }
+                if(state.reloadedWhilePending) {
+                    state.reloadedWhilePending = false;
+                    highlightAppendedANSISequences(editor);
+                }
+                if(from == 0) enforceBudget();
             });
+        }
+    }
 
-            while(taskId == backgroundProcessId && !queue.isEmpty()) {
-                application.invokeAndWait(() -> {
-                    if(queue.isEmpty() || taskId != backgroundProcessId) return;
-                    HighlightTaskData task = queue.next();
-                    if(task.getEditor().isDisposed()) {
-                        queue.removeTask(task);
-                        return;
-                    }
-                    task.run(ALL_ATTRIBUTES);
-                    queue.taskProcessedUpdateQueue(task);
-                });
-                indicator.setFraction(queue.getProgressFraction());
-            }
+    private class StrippedPreviewTask extends Task.Backgroundable {
+        private final VirtualFile file;
+        private final Document document;
+        private final int caretOffset;
+
+        public StrippedPreviewTask(VirtualFile file, Document document, int caretOffset) {
+            super(project, "Stripping ANSI Sequences...", false);
+            this.file = file;
+            this.document = document;
+            this.caretOffset = caretOffset;
+        }
+
+        @Override
+        public void run(@NotNull ProgressIndicator indicator) {
+            CharSequence text = takeSnapshot(document, null);
+            long stamp = application.runReadAction((Computable<Long>) document::getModificationStamp);
+            long start = System.nanoTime();
+            ANSIRunTable runs = newParser(text, indicator::checkCanceled).parse(0, 0, 0);
+            ANSIHighlighterMetrics.getInstance().parsed(text.length(), runs.getConcealedCount(), System.nanoTime() - start);
+            int[] carriageReturns = scanCarriageReturns(document, stamp, text, newCarriageReturnScanner(document));
+            runs = ANSIOverwriteCollapser.collapse(text, CharArrayUtil.fromSequenceWithoutCopying(text), runs, 0, text.length(), carriageReturns);
+            ANSIStrippedText stripped = ANSIStrippedText.strip(text, runs);
+            ANSIRunTable strippedRuns = stripped.toStrippedRuns(runs);
+            application.invokeLater(() -> {
+                if(project.isDisposed()) return;
+                Editor preview = ANSIStrippedPreview.open(project, file, stripped, caretOffset);
+                if(preview == null || strippedRuns.isEmpty()) return;
+                if(ANSIViewportHighlighter.isLazyModeWorthwhile(strippedRuns)) {
+                    ANSIViewportHighlighter.install(preview, strippedRuns, ALL_ATTRIBUTES);
+                } else {
+                    queue.addNewTask(preview, strippedRuns, ALL_ATTRIBUTES);
+                }
+            });
         }
+    }
+
+    /**
+     * full passes over large files go through {@link ANSIHighlightIndex}, so that reopening an unchanged file skips
+     * the scanning
+     * @param stamp modification stamp of the document when <code>text</code> got taken
+     */
+    private ANSIParseCache.Result loadOrParse(Document document, long stamp, CharSequence text, int windowStart,
+                                              Supplier<ANSIParseCache.Result> parse) {
+        VirtualFile file = FileDocumentManager.getInstance().getFile(document);
+        if(!ANSIHighlightIndex.isIndexable(file)) return parse.get();
+        //the file's length and timestamp only identify the text if the document is in sync with the file, in which
+        //case the document shares the file's modification stamp
+        long[] fileStamp = application.runReadAction((Computable<long[]>) () ->
+                stamp != document.getModificationStamp() || stamp != file.getModificationStamp() ? null :
+                        new long[] {file.getLength(), file.getTimeStamp()});
+        if(fileStamp == null) return parse.get();
+
+        ANSIParseCache.Result result = ANSIHighlightIndex.load(file, fileStamp[0], fileStamp[1], text.length(), windowStart);
+        if(result != null) return result;
+        result = parse.get();
+        ANSIHighlightIndex.store(file, fileStamp[0], fileStamp[1], text.length(), result);
+        return result;
+    }
 
-        private boolean isEmptyHighlightResult(Pair<List<HighlightRangeData>, List<FoldRegion>> result) {
-            if(result == null) return true;
-            return (result.first == null || result.first.isEmpty()) && (result.second == null || result.second.isEmpty());
+    /**
+     * The document's immutable snapshot is referenced instead of copying its text. The snapshot never changes once
+     * taken so it can be scanned without holding the read lock, which would otherwise block the write actions
+     * reloading a followed file for the whole parse.
+     */
+    private CharSequence takeSnapshot(Document document, FollowState state) {
+        return application.runReadAction((Computable<CharSequence>) () -> {
+            CharSequence snapshot = document.getImmutableCharSequence();
+            //taken under the same read action so that no change can slip in between, see documentChanged
+            if(state != null) {
+                state.scanEnd = snapshot.length();
+                state.stamp = document.getModificationStamp();
+            }
+            return snapshot;
+        });
+    }
+
+    private static ANSICarriageReturnScanner newCarriageReturnScanner(Document document) {
+        VirtualFile file = FileDocumentManager.getInstance().getFile(document);
+        return file == null ? null : ANSICarriageReturnScanner.create(file.getCharset());
+    }
+
+    /**
+     * lone carriage returns are converted to line breaks in documents, they are found back in the file as long as the
+     * document is in sync with it, see {@link ANSICarriageReturnScanner}
+     * @param stamp modification stamp of the document when <code>text</code> got taken
+     * @return offsets of the line breaks of <code>text</code> standing for a carriage return, null if unknown
+     */
+    private int[] scanCarriageReturns(Document document, long stamp, CharSequence text, ANSICarriageReturnScanner scanner) {
+        VirtualFile file = FileDocumentManager.getInstance().getFile(document);
+        if(scanner == null || file == null) return null;
+        boolean inSync = application.runReadAction((Computable<Boolean>) () ->
+                stamp == document.getModificationStamp() && stamp == file.getModificationStamp() &&
+                        file.getLength() - scanner.getByteOffset() <= CARRIAGE_RETURNS_MAX_SCAN);
+        if(!inSync) return null;
+        try (InputStream in = file.getInputStream()) {
+            for(long skipped = 0, n; skipped < scanner.getByteOffset(); skipped += n) {
+                if((n = in.skip(scanner.getByteOffset() - skipped)) <= 0) return null;
+            }
+            int[] offsets = scanner.scan(in);
+            return scanner.matches(text, offsets) ? offsets : null;
+        } catch (IOException e) {
+            return null;
         }
     }
 
+    /**
+     * large texts get parsed in parallel, see {@link ANSIParallelParser}
+     * @param cancellationCheck called regularly while scanning, throws {@link ProcessCanceledException} to abort
+     */
+    private static ANSIParallelParser newParser(CharSequence text, Runnable cancellationCheck) {
+        ANSIParallelParser parser = new ANSIParallelParser(text, CharArrayUtil.fromSequenceWithoutCopying(text));
+        parser.setCancellationCheck(cancellationCheck);
+        return parser;
+    }
+
 
     //______________________________Pre-calculations to accelerate parsing______________________________________
 
@@ -208,54 +671,67 @@ public class ANSIHighlighter {
      *     This makes the highest possible index value 1000 1000 111b = 1095. Id's such as 100 1111 111b don't map
      *     to a valid/supported sequence and are be left unset/null.
      * </p>
-     */
-    private static final TextAttributes[] ALL_ATTRIBUTES = new TextAttributes[1096];
-
-    /**
-     * To infer the index (or id) of a cached TextAttributes instance matching a parsed ansi sequence, the parser
-     * proceeds as follows:
-     * <ul>
-     *     <li>Start by initializing the id to 0</li>
-     *     <li>For each parsed code in the sequence apply the following formula <code>id = (id & resetMask) | mask</code></li>
-     * </ul>
-     * <p>
-     *     Example: say the parsed code is 35 (magenta foreground), here the matching <code>resetMask</code> would be
-     *     ...1111 0000 111b, and <code>mask</code> would be ...0000 0110 000b.
-     *     Notice the use of 0110b = 6 instead of 0101b = 5, that is because 0000 maps to null (no foreground color
-     *     code specified in the sequence), which means black (code 30) should map to 0001b instead of 0000b.
-     * </p>
-     *
-     * <p>
-     *     <code>ENCODER</code> is pre-calculated at startup and maps each supported ANSI code (ranges from 0 to 47) to the
-     *     corresponding mask/resetMask encapsulated under {@link ANSITextAttributesIDEncoder} instances.
-     * </p>
      *
      * <p>
-     *     Using the cached encoders to calculate id's (indexes) of cached TextAttributes is very efficient, which is
-     *     important for large files with a large number of ansi sequences.
+     *     These ids are the legacy part of the style keys computed by the parser (see {@link ANSIStyleKey}), keys using
+     *     anything else resolve through {@link ANSITextAttributesCache} instead.
      * </p>
      */
-    private static final ANSITextAttributesIDEncoder[] ENCODER = new ANSITextAttributesIDEncoder[48];
+    static final int ATTRIBUTES_COUNT = 1096;
+
+    private static final TextAttributes[] ALL_ATTRIBUTES = new TextAttributes[ATTRIBUTES_COUNT];
 
-    static {
-        Arrays.fill(ENCODER, ANSITextAttributesIDEncoder.UNSUPPORTED_CODE_ENCODER);
+    //switching back and forth between schemes is common (e.g. light/dark), so the last few palettes are kept around
+    private static final int CACHED_PALETTES_COUNT = 8;
 
-        ENCODER[RESET] = new ANSITextAttributesIDEncoder(0, 0);
-        ENCODER[BOLD] = new ANSITextAttributesIDEncoder(0xFFFFFFFE, 1);
-        ENCODER[ITALIC] = new ANSITextAttributesIDEncoder(0xFFFFFFFD, 2);
-        ENCODER[UNDERLINE] = new ANSITextAttributesIDEncoder(0xFFFFFFFB, 4);
+    /**
+     * copies of {@link #ALL_ATTRIBUTES} per palette, i.e. the colors scheme's 8 ANSI foreground and background colors,
+     * which is all the legacy ids depend on. Unlike scheme names, palettes also tell apart edits made to a scheme.
+     */
+    private static final Map<List<Color>, TextAttributes[]> PALETTES = new LinkedHashMap<List<Color>, TextAttributes[]>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<List<Color>, TextAttributes[]> eldest) {
+            return size() > CACHED_PALETTES_COUNT;
+        }
+    };
 
-        ANSIColor.setupColorsEncoders(ENCODER);
+    /**
+     * @return the attributes of a style key (see {@link ANSIStyleKey}), pre-loaded for legacy ids and otherwise
+     * interned under {@link ANSITextAttributesCache}
+     */
+    static TextAttributes getTextAttributes(long key) {
+        return ANSIStyleKey.isLegacy(key) ? ALL_ATTRIBUTES[(int) key] : ANSITextAttributesCache.get(key);
     }
 
-    public static void preloadAllTextAttributes() {
+    /**
+     * (Re)loads the attributes of the current colors scheme, {@link #ALL_ATTRIBUTES} instances get updated in place.
+     * @see #refreshTextAttributes(Editor)
+     */
+    public static synchronized void preloadAllTextAttributes() {
+        ANSIColor.colorsScheme = EditorColorsManager.getInstance().getGlobalScheme();
         ANSIColor.initAllANSIColors();
+        ANSITextAttributesCache.switchPalette(ANSIColor.getExtendedPalette());
+
+        List<Color> palette = ANSIColor.getPalette();
+        TextAttributes[] cached = PALETTES.get(palette);
+        if(cached != null) {
+            for(int id = 0; id < ATTRIBUTES_COUNT; id++) {
+                if(cached[id] != null) ALL_ATTRIBUTES[id].copyFrom(cached[id]);
+            }
+            return;
+        }
 
         TextAttributesOperation[] operations = new TextAttributesOperation[5];
         operations[0] = null;
         setupAllAttributesItalic(operations, 0);
         operations[0] = (attributes) -> attributes.setFontType(attributes.getFontType() | Font.BOLD);
         setupAllAttributesItalic(operations, 1);
+
+        cached = new TextAttributes[ATTRIBUTES_COUNT];
+        for(int id = 0; id < ATTRIBUTES_COUNT; id++) {
+            if(ALL_ATTRIBUTES[id] != null) cached[id] = ALL_ATTRIBUTES[id].clone();
+        }
+        PALETTES.put(palette, cached);
     }
 
     static void setupAllAttributesItalic(TextAttributesOperation[] operations, int id) {
@@ -279,11 +755,14 @@ public class ANSIHighlighter {
     }
 
     static void setupAttributes(TextAttributesOperation[] operations, int id) {
-        ALL_ATTRIBUTES[id] = new TextAttributes();
+        TextAttributes attributes = new TextAttributes();
         for(TextAttributesOperation op : operations) {
             if(op != null) {
-                op.apply(ALL_ATTRIBUTES[id]);
+                op.apply(attributes);
             }
         }
+        //instances are updated in place since ANSIEditorHighlighter and the highlighters of legacy ids hold on to them
+        if(ALL_ATTRIBUTES[id] == null) ALL_ATTRIBUTES[id] = attributes;
+        else ALL_ATTRIBUTES[id].copyFrom(attributes);
     }
 }
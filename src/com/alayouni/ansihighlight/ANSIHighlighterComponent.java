@@ -9,6 +9,8 @@ import com.intellij.openapi.editor.Editor;
 import com.intellij.openapi.editor.EditorFactory;
 import com.intellij.openapi.editor.FoldRegion;
 import com.intellij.openapi.editor.colors.EditorColorsManager;
+import com.intellij.openapi.editor.event.DocumentAdapter;
+import com.intellij.openapi.editor.event.DocumentEvent;
 import com.intellij.openapi.editor.event.EditorFactoryAdapter;
 import com.intellij.openapi.editor.event.EditorFactoryEvent;
 import com.intellij.openapi.editor.ex.EditorEx;
@@ -56,6 +58,18 @@ public class ANSIHighlighterComponent implements ProjectComponent, ANSIHighlight
                 editor.putUserData(PREVIEW_MODE_KEY, true);
             }
 
+            @Override
+            public void editorReleased(@NotNull EditorFactoryEvent e) {
+                //stop parsing for editors closed before their highlighting completes
+                Editor editor = e.getEditor();
+                ansiHighlighter.cancelHighlighting(editor);
+                //the released editor may still be listed at this point
+                for(Editor other : EditorFactory.getInstance().getEditors(editor.getDocument())) {
+                    if(other != editor) return;
+                }
+                ANSIParseCache.invalidate(editor.getDocument());
+            }
+
         }, project);
 
         //sync editor highlights to external changes brought to file
@@ -67,14 +81,23 @@ public class ANSIHighlighterComponent implements ProjectComponent, ANSIHighlight
                 if(editors == null || editors.length == 0) return;
                 for(Editor editor : editors) {
                     if(editor.getUserData(PREVIEW_MODE_KEY)) {
-                        ansiHighlighter.highlightANSISequences(editor);
+                        ansiHighlighter.highlightAppendedANSISequences(editor);
                     }
                 }
             }
         });
 
+        //follow mode is only valid as long as the already highlighted content remains untouched
+        EditorFactory.getInstance().getEventMulticaster().addDocumentListener(new DocumentAdapter() {
+            @Override
+            public void documentChanged(DocumentEvent e) {
+                ansiHighlighter.documentChanged(e);
+            }
+        }, project);
+
         connection.subscribe(TOGGLE_ANSI_HIGHLIGHTER_TOPIC, this);
 
+        //re-skins the markup in place, there is nothing to parse again
         connection.subscribe(EditorColorsManager.TOPIC, (editorColorsScheme) -> {
             ANSIHighlighter.preloadAllTextAttributes();
             Editor[] openEditors = EditorFactory.getInstance().getAllEditors();
@@ -84,7 +107,17 @@ public class ANSIHighlighterComponent implements ProjectComponent, ANSIHighlight
                 Document doc = editor.getDocument();
                 VirtualFile file = fdm.getFile(doc);
                 if(!ANSIAwareFileType.isANSIAware(file)) continue;
-                ansiHighlighter.highlightANSISequences(editor);
+                ansiHighlighter.refreshTextAttributes(editor);
+            }
+        });
+
+        //markup of editors out of sight is released under the budget and restored once they get selected again
+        connection.subscribe(FileEditorManagerListener.FILE_EDITOR_MANAGER, new FileEditorManagerAdapter() {
+            @Override
+            public void selectionChanged(@NotNull FileEditorManagerEvent e) {
+                if(!(e.getNewEditor() instanceof TextEditor) || !ANSIAwareFileType.isANSIAware(e.getNewFile())) return;
+                Editor editor = ((TextEditor) e.getNewEditor()).getEditor();
+                ansiHighlighter.editorSelected(editor, !Boolean.FALSE.equals(editor.getUserData(PREVIEW_MODE_KEY)));
             }
         });
 
@@ -180,6 +213,8 @@ public class ANSIHighlighterComponent implements ProjectComponent, ANSIHighlight
         if(editors == null || editors.length == 0) return;
 
         for(Editor editor : editors) {
+            //fold regions stay disabled under plain mode, see ANSIHighlighter#hideHighlights
+            if(Boolean.FALSE.equals(editor.getUserData(PREVIEW_MODE_KEY))) continue;
             FoldingModelEx fm = (FoldingModelEx) editor.getFoldingModel();
             fm.setFoldingEnabled(true);
         }
@@ -195,13 +230,18 @@ public class ANSIHighlighterComponent implements ProjectComponent, ANSIHighlight
         if(!(editor instanceof EditorEx)) return;
         boolean previewMode = !editor.getUserData(PREVIEW_MODE_KEY);
         editor.putUserData(PREVIEW_MODE_KEY, previewMode);
+        ansiHighlighter.setStyledByLexer(editor, previewMode);
         if(previewMode) {
-            ansiHighlighter.highlightANSISequences(editor);
+            ansiHighlighter.showHighlights(editor);
         } else {
-            ansiHighlighter.cleanupHighlights(editor);
+            ansiHighlighter.hideHighlights(editor);
         }
     }
 
+    ANSIHighlighter getAnsiHighlighter() {
+        return ansiHighlighter;
+    }
+
     @Override
     public void disposeComponent() {
         connection.disconnect();
@@ -0,0 +1,135 @@
+package com.alayouni.ansihighlight;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Application wide counters of the highlighting phases, shown by {@link ANSIDiagnosticsToolWindowFactory} so that a
+ * slow rendering can be attributed to parsing, markup inserts or fold batches. Each phase is also emitted as a JFR
+ * event when running on a JVM shipping the <code>jdk.jfr</code> API, see {@link ANSIFlightRecorderEvents}.
+ */
+class ANSIHighlighterMetrics {
+    private static final ANSIHighlighterMetrics INSTANCE = new ANSIHighlighterMetrics();
+
+    private static final boolean JFR_AVAILABLE = isJFRAvailable();
+
+    /**
+     * upper bounds (in milliseconds, exclusive) of the EDT slice duration histogram buckets, the last bucket counts
+     * anything longer
+     */
+    private static final int[] SLICE_BUCKETS = {1, 2, 4, 8, 16, 32, 64};
+
+    private final AtomicLong parseCount = new AtomicLong(), charsScanned = new AtomicLong(), sequencesFound = new AtomicLong(), parseNanos = new AtomicLong();
+
+    private final AtomicLong sliceCount = new AtomicLong(), sliceNanos = new AtomicLong(), maxSliceNanos = new AtomicLong();
+    private final AtomicLongArray sliceHistogram = new AtomicLongArray(SLICE_BUCKETS.length + 1);
+    private volatile int queueDepth = 0;
+
+    private final AtomicLong highlightCount = new AtomicLong(), highlightNanos = new AtomicLong();
+    private final AtomicLong foldRegionCount = new AtomicLong(), foldNanos = new AtomicLong();
+
+    private ANSIHighlighterMetrics() {}
+
+    static ANSIHighlighterMetrics getInstance() {
+        return INSTANCE;
+    }
+
+    static boolean isJFREnabled() {
+        return JFR_AVAILABLE;
+    }
+
+    /**
+     * @param chars number of chars scanned
+     * @param sequences number of supported sequences found
+     */
+    void parsed(int chars, int sequences, long nanos) {
+        parseCount.incrementAndGet();
+        charsScanned.addAndGet(chars);
+        sequencesFound.addAndGet(sequences);
+        parseNanos.addAndGet(nanos);
+        if(JFR_AVAILABLE) ANSIFlightRecorderEvents.parsed(chars, sequences, nanos);
+    }
+
+    /**
+     * @param queueDepth number of tasks left queued after the slice
+     */
+    void sliceRan(long nanos, int turns, int queueDepth) {
+        sliceCount.incrementAndGet();
+        sliceNanos.addAndGet(nanos);
+        maxSliceNanos.accumulateAndGet(nanos, Math::max);
+        long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+        int bucket = 0;
+        while (bucket < SLICE_BUCKETS.length && millis >= SLICE_BUCKETS[bucket]) bucket++;
+        sliceHistogram.incrementAndGet(bucket);
+        this.queueDepth = queueDepth;
+        if(JFR_AVAILABLE) ANSIFlightRecorderEvents.sliceRan(nanos, turns, queueDepth);
+    }
+
+    void highlightsApplied(int count, long nanos) {
+        if(count == 0) return;
+        highlightCount.addAndGet(count);
+        highlightNanos.addAndGet(nanos);
+        if(JFR_AVAILABLE) ANSIFlightRecorderEvents.markupApplied(false, count, nanos);
+    }
+
+    void foldRegionsApplied(int count, long nanos) {
+        if(count == 0) return;
+        foldRegionCount.addAndGet(count);
+        foldNanos.addAndGet(nanos);
+        if(JFR_AVAILABLE) ANSIFlightRecorderEvents.markupApplied(true, count, nanos);
+    }
+
+    long getSliceCount() {
+        return sliceCount.get();
+    }
+
+    long getMaxSliceNanos() {
+        return maxSliceNanos.get();
+    }
+
+    void reset() {
+        for(AtomicLong counter : new AtomicLong[] {parseCount, charsScanned, sequencesFound, parseNanos, sliceCount, sliceNanos,
+                maxSliceNanos, highlightCount, highlightNanos, foldRegionCount, foldNanos}) {
+            counter.set(0);
+        }
+        for(int i = 0; i < sliceHistogram.length(); i++) {
+            sliceHistogram.set(i, 0);
+        }
+    }
+
+    void appendReport(StringBuilder report) {
+        report.append("Parsing\n");
+        report.append("  passes: ").append(parseCount.get())
+                .append(", chars scanned: ").append(charsScanned.get())
+                .append(", sequences found: ").append(sequencesFound.get())
+                .append(", time: ").append(millis(parseNanos.get())).append(" ms\n");
+
+        report.append("EDT slices\n");
+        report.append("  count: ").append(sliceCount.get())
+                .append(", total: ").append(millis(sliceNanos.get())).append(" ms")
+                .append(", max: ").append(millis(maxSliceNanos.get())).append(" ms")
+                .append(", queue depth: ").append(queueDepth).append('\n');
+        report.append("  durations:");
+        for(int i = 0; i < sliceHistogram.length(); i++) {
+            report.append(i < SLICE_BUCKETS.length ? "  <" + SLICE_BUCKETS[i] : "  >=" + SLICE_BUCKETS[i - 1])
+                    .append(" ms: ").append(sliceHistogram.get(i));
+        }
+        report.append('\n');
+        report.append("  markup inserts: ").append(highlightCount.get()).append(" in ").append(millis(highlightNanos.get())).append(" ms")
+                .append(", fold regions: ").append(foldRegionCount.get()).append(" in ").append(millis(foldNanos.get())).append(" ms\n");
+    }
+
+    private static long millis(long nanos) {
+        return TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+
+    private static boolean isJFRAvailable() {
+        try {
+            Class.forName("jdk.jfr.Event", false, ANSIHighlighterMetrics.class.getClassLoader());
+            return true;
+        } catch (ClassNotFoundException | LinkageError e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package com.alayouni.ansihighlight;
+
+/**
+ * Repairs an {@link ANSIRunTable} after the text it was parsed from got edited, by parsing again only the window
+ * affected by the edits:
+ * <ul>
+ *     <li>parsing resumes from the last checkpoint at or before the start of the first edited line, with the key
+ *     recorded there. Sequences never span line breaks, so no sequence can start before that checkpoint and end
+ *     past it.</li>
+ *     <li>it stops at the first checkpoint past the edits where the key in effect matches the recorded one again
+ *     (and which no sequence spans), since the rest of the text parses the same from there. If the state never
+ *     reconverges, the window extends to the end of the text.</li>
+ * </ul>
+ */
+class ANSIIncrementalParser {
+    /**
+     * windows longer than this (in KB, <code>ansi.highlighter.repair.window.kb</code> system property) are given up
+     * on, a full parse is due
+     */
+    static final int MAX_WINDOW = Integer.getInteger("ansi.highlighter.repair.window.kb", 1024) << 10;
+
+    private final CharSequence text;
+    private final char[] chars;
+
+    private int windowStart, windowEnd;
+    private boolean reachedEnd;
+    private long lastKey;
+    private int resumeOffset;
+
+    /**
+     * @see ANSIParser#ANSIParser(CharSequence, char[])
+     */
+    ANSIIncrementalParser(CharSequence text, char[] chars) {
+        this.text = text;
+        this.chars = chars;
+    }
+
+    /**
+     * @param runs the table parsed before the edits, its offsets shifted to the edited text (see
+     *             {@link ANSIRunTable#shift(int, int, int)})
+     * @param dirtyStart start of the edited range in the edited text
+     * @param dirtyEnd end of the edited range in the edited text
+     * @return the runs of the window <code>[getWindowStart(), getWindowEnd())</code>, null if no checkpoint precedes
+     * the edits or if the window exceeds {@link #MAX_WINDOW}
+     */
+    ANSIRunTable reparse(ANSIRunTable runs, int dirtyStart, int dirtyEnd) {
+        int lineStart = lineStartOffset(dirtyStart);
+        long key0;
+        if(lineStart == 0 && runs.getCheckpointCount() > 0 && runs.getCheckpointOffset(0) == 0) {
+            //the table was parsed from the start of the text, where no key is in effect
+            windowStart = 0;
+            key0 = 0;
+        } else {
+            //checkpoints inside the edits collapsed to their start and hold outdated keys
+            int checkpoint = runs.lastCheckpointAtOrBefore(lineStart < dirtyStart ? lineStart : dirtyStart - 1);
+            if(checkpoint < 0) return null;
+            windowStart = runs.getCheckpointOffset(checkpoint);
+            key0 = runs.getCheckpointKey(checkpoint);
+        }
+
+        //once reconverged the state remains so past any later checkpoint, so the candidates get further apart on
+        //each attempt to bound the text parsed again to about twice the final window
+        for(int i = runs.firstCheckpointAfter(dirtyEnd), step = 1; ; i += step, step <<= 1) {
+            reachedEnd = i >= runs.getCheckpointCount();
+            windowEnd = reachedEnd ? text.length() : runs.getCheckpointOffset(i);
+            if(windowEnd - windowStart > MAX_WINDOW) return null;
+            //parsed again from the window start rather than from where the previous attempt stopped, a run may
+            //otherwise end up split or a truncated sequence be styled twice
+            ANSIParser parser = new ANSIParser(text, chars, windowEnd);
+            ANSIRunTable parsed = parser.parse(windowStart, key0, windowStart);
+            lastKey = parser.getLastKey();
+            resumeOffset = parser.getResumeOffset();
+            if(!reachedEnd && (resumeOffset != windowEnd || lastKey != runs.getCheckpointKey(i) || isChained(windowEnd))) continue;
+
+            //the checkpoint resumed from is kept even when it is not on the parser's interval
+            if(parsed.getCheckpointCount() > 0 && parsed.getCheckpointOffset(0) == windowStart) return parsed;
+            ANSIRunTable window = new ANSIRunTable();
+            window.addCheckpoint(windowStart, key0);
+            window.append(parsed);
+            return window;
+        }
+    }
+
+    int getWindowStart() {
+        return windowStart;
+    }
+
+    int getWindowEnd() {
+        return windowEnd;
+    }
+
+    /**
+     * @return true if the window extends to the end of the text, {@link #getLastKey()} and {@link #getResumeOffset()}
+     * then replace the ones of the original parse
+     */
+    boolean isEndReached() {
+        return reachedEnd;
+    }
+
+    long getLastKey() {
+        return lastKey;
+    }
+
+    int getResumeOffset() {
+        return resumeOffset;
+    }
+
+    /**
+     * @return true if a sequence starts at <code>offset</code> right after another one, the chain they form could
+     * have parsed differently had the text not been cut in between
+     */
+    private boolean isChained(int offset) {
+        return charAt(offset) == '\u001B' && offset > 0 && charAt(offset - 1) != '\n' && charAt(offset - 1) != '\r';
+    }
+
+    private char charAt(int offset) {
+        return chars != null ? chars[offset] : text.charAt(offset);
+    }
+
+    private int lineStartOffset(int offset) {
+        for(int i = Math.min(offset, text.length()) - 1; i >= 0; i--) {
+            char c = charAt(i);
+            if(c == '\n' || c == '\r') return i + 1;
+        }
+        return 0;
+    }
+}
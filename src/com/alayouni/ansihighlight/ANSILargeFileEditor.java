@@ -0,0 +1,145 @@
+package com.alayouni.ansihighlight;
+
+import com.intellij.codeHighlighting.BackgroundEditorHighlighter;
+import com.intellij.ide.structureView.StructureViewBuilder;
+import com.intellij.openapi.fileEditor.FileEditor;
+import com.intellij.openapi.fileEditor.FileEditorLocation;
+import com.intellij.openapi.fileEditor.FileEditorState;
+import com.intellij.openapi.fileEditor.FileEditorStateLevel;
+import com.intellij.openapi.progress.ProcessCanceledException;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.Task;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.Disposer;
+import com.intellij.openapi.util.UserDataHolderBase;
+import com.intellij.openapi.vfs.VfsUtilCore;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.ui.components.JBLabel;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import javax.swing.*;
+import java.beans.PropertyChangeListener;
+import java.io.IOException;
+
+/**
+ * Read-only editor of ANSI aware files too large to be loaded into a document, see
+ * {@link ANSILargeFileEditorProvider}. The file gets memory-mapped and indexed in the background while the
+ * {@link ANSILargeFileViewer} displays the lines indexed so far. The file is viewed as it was when opened.
+ */
+class ANSILargeFileEditor extends UserDataHolderBase implements FileEditor {
+    private final VirtualFile file;
+    private final JComponent component;
+    private final JComponent preferredFocusedComponent;
+
+    private volatile boolean disposed = false;
+
+    ANSILargeFileEditor(Project project, VirtualFile file) {
+        this.file = file;
+        ANSIMappedFile mapped;
+        try {
+            mapped = new ANSIMappedFile(VfsUtilCore.virtualToIoFile(file), file.getCharset());
+        } catch (IOException e) {
+            component = new JBLabel("Failed to open " + file.getPresentableUrl() + ": " + e.getMessage(), SwingConstants.CENTER);
+            preferredFocusedComponent = null;
+            return;
+        }
+        ANSILargeFileIndex index = new ANSILargeFileIndex(mapped);
+        ANSILargeFileViewer viewer = new ANSILargeFileViewer(mapped, index);
+        Disposer.register(this, viewer);
+        component = viewer;
+        preferredFocusedComponent = viewer.getPreferredFocusedComponent();
+
+        new Task.Backgroundable(project, "Indexing " + file.getName() + "...", true) {
+            @Override
+            public void run(@NotNull ProgressIndicator indicator) {
+                indicator.setIndeterminate(false);
+                index.build(() -> {
+                    if(disposed) throw new ProcessCanceledException();
+                    indicator.checkCanceled();
+                    indicator.setFraction((double) index.getIndexedLength() / Math.max(1, mapped.length()));
+                });
+            }
+        }.queue();
+    }
+
+    @NotNull
+    @Override
+    public JComponent getComponent() {
+        return component;
+    }
+
+    @Nullable
+    @Override
+    public JComponent getPreferredFocusedComponent() {
+        return preferredFocusedComponent;
+    }
+
+    @NotNull
+    @Override
+    public String getName() {
+        return "ANSI Viewer";
+    }
+
+    @NotNull
+    @Override
+    public FileEditorState getState(@NotNull FileEditorStateLevel level) {
+        return FileEditorState.INSTANCE;
+    }
+
+    @Override
+    public void setState(@NotNull FileEditorState state) {
+    }
+
+    @Override
+    public boolean isModified() {
+        return false;
+    }
+
+    @Override
+    public boolean isValid() {
+        return file.isValid();
+    }
+
+    @Override
+    public void selectNotify() {
+    }
+
+    @Override
+    public void deselectNotify() {
+    }
+
+    @Override
+    public void addPropertyChangeListener(@NotNull PropertyChangeListener listener) {
+    }
+
+    @Override
+    public void removePropertyChangeListener(@NotNull PropertyChangeListener listener) {
+    }
+
+    @Nullable
+    @Override
+    public BackgroundEditorHighlighter getBackgroundHighlighter() {
+        return null;
+    }
+
+    @Nullable
+    @Override
+    public FileEditorLocation getCurrentLocation() {
+        return null;
+    }
+
+    @Nullable
+    @Override
+    public StructureViewBuilder getStructureViewBuilder() {
+        return null;
+    }
+
+    /**
+     * stops indexing, the mapping itself gets released once garbage collected
+     */
+    @Override
+    public void dispose() {
+        disposed = true;
+    }
+}
@@ -0,0 +1,59 @@
+package com.alayouni.ansihighlight;
+
+import com.intellij.openapi.fileEditor.FileEditor;
+import com.intellij.openapi.fileEditor.FileEditorPolicy;
+import com.intellij.openapi.fileEditor.FileEditorProvider;
+import com.intellij.openapi.fileEditor.FileEditorState;
+import com.intellij.openapi.project.DumbAware;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.Disposer;
+import com.intellij.openapi.util.io.FileUtilRt;
+import com.intellij.openapi.vfs.VirtualFile;
+import org.jdom.Element;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Opens ANSI aware files over the IDE's content size limit (<code>idea.max.content.load.filesize</code>) in an
+ * {@link ANSILargeFileEditor} instead of the truncated read-only text editor, their size being then only limited by
+ * the address space.
+ */
+public class ANSILargeFileEditorProvider implements FileEditorProvider, DumbAware {
+    @Override
+    public boolean accept(@NotNull Project project, @NotNull VirtualFile file) {
+        return ANSIAwareFileType.isANSIAware(file) && file.isInLocalFileSystem() && FileUtilRt.isTooLarge(file.getLength()) &&
+                ANSIMappedFile.isSupported(file.getCharset());
+    }
+
+    @NotNull
+    @Override
+    public FileEditor createEditor(@NotNull Project project, @NotNull VirtualFile file) {
+        return new ANSILargeFileEditor(project, file);
+    }
+
+    @Override
+    public void disposeEditor(@NotNull FileEditor editor) {
+        Disposer.dispose(editor);
+    }
+
+    @NotNull
+    @Override
+    public FileEditorState readState(@NotNull Element sourceElement, @NotNull Project project, @NotNull VirtualFile file) {
+        return FileEditorState.INSTANCE;
+    }
+
+    @Override
+    public void writeState(@NotNull FileEditorState state, @NotNull Project project, @NotNull Element targetElement) {
+    }
+
+    @NotNull
+    @Override
+    public String getEditorTypeId() {
+        return "ansi-large-file-viewer";
+    }
+
+    @NotNull
+    @Override
+    public FileEditorPolicy getPolicy() {
+        return FileEditorPolicy.HIDE_DEFAULT_EDITOR;
+    }
+}
@@ -0,0 +1,153 @@
+package com.alayouni.ansihighlight;
+
+import java.util.Arrays;
+
+/**
+ * Sparse index of a {@link ANSIMappedFile}, built in the background: a checkpoint is recorded every
+ * {@link #LINES_PER_CHECKPOINT} lines (or every {@link #BYTES_PER_CHECKPOINT} bytes on files with very long lines),
+ * holding the line number, the offset of the line start, and the style key (see {@link ANSIStyleKey}) in effect
+ * there. Locating any line then only takes scanning the lines since the closest checkpoint, and the heap used is a
+ * small fraction of the file size.
+ */
+class ANSILargeFileIndex {
+    private static final int LINES_PER_CHECKPOINT = 1024;
+    private static final int BYTES_PER_CHECKPOINT = 1 << 26;
+
+    private final ANSIMappedFile file;
+
+    //checkpoints, in ascending order
+    private int[] lines = new int[64];
+    private long[] offsets = new long[64];
+    private long[] keys = new long[64];
+    private int checkpointCount = 0;
+
+    //lines and bytes indexed so far
+    private volatile int lineCount = 1;
+    private volatile long indexedLength = 0;
+    private volatile boolean complete = false;
+
+    //length in bytes of the longest line indexed so far
+    private volatile int maxLineLength = 0;
+
+    ANSILargeFileIndex(ANSIMappedFile file) {
+        this.file = file;
+        addCheckpoint(0, 0, 0);
+    }
+
+    /**
+     * @param cancellationCheck run after each checkpoint, expected to throw to abort indexing
+     */
+    void build(Runnable cancellationCheck) {
+        long length = file.length(), lineStart = 0, checkpointOffset = 0, key = 0;
+        int line = 0, checkpointLine = 0, maxLineLength = 0;
+        while (true) {
+            long lineBreak = file.indexOfLineBreak(lineStart, length);
+            long lineEnd = lineBreak == -1 ? length : lineBreak + 1;
+            maxLineLength = (int) Math.max(maxLineLength, Math.min(lineEnd - lineStart, Integer.MAX_VALUE));
+            if(lineBreak == -1) break;
+            line++;
+            lineStart = lineEnd;
+            if(line - checkpointLine == LINES_PER_CHECKPOINT || lineStart - checkpointOffset >= BYTES_PER_CHECKPOINT) {
+                key = getKeyAfter(checkpointOffset, lineStart, key);
+                addCheckpoint(line, lineStart, key);
+                checkpointLine = line;
+                checkpointOffset = lineStart;
+                this.maxLineLength = maxLineLength;
+                indexedLength = lineStart;
+                lineCount = line + 1;
+                cancellationCheck.run();
+            }
+        }
+        this.maxLineLength = maxLineLength;
+        indexedLength = length;
+        lineCount = line + 1;
+        complete = true;
+    }
+
+    boolean isComplete() {
+        return complete;
+    }
+
+    int getLineCount() {
+        return lineCount;
+    }
+
+    long getIndexedLength() {
+        return indexedLength;
+    }
+
+    int getMaxLineLength() {
+        return maxLineLength;
+    }
+
+    /**
+     * Locates a line from the closest checkpoint before it.
+     * @param line must be less than {@link #getLineCount()}
+     * @param result filled with the offset of the line start (index 0) and the style key in effect there (index 1)
+     */
+    void locate(int line, long[] result) {
+        int checkpointLine;
+        long offset, key;
+        synchronized (this) {
+            int checkpoint = Arrays.binarySearch(lines, 0, checkpointCount, line);
+            if(checkpoint < 0) checkpoint = -checkpoint - 2;
+            checkpointLine = lines[checkpoint];
+            offset = offsets[checkpoint];
+            key = keys[checkpoint];
+        }
+        long start = offset, length = file.length();
+        for(int i = checkpointLine; i < line; i++) {
+            offset = file.indexOfLineBreak(offset, length) + 1;
+        }
+        result[0] = offset;
+        result[1] = getKeyAfter(start, offset, key);
+    }
+
+    /**
+     * @return position of the end of the line starting at <code>lineStart</code>, excluding the line break
+     */
+    long getLineEnd(long lineStart) {
+        long lineBreak = file.indexOfLineBreak(lineStart, file.length());
+        if(lineBreak == -1) return file.length();
+        return lineBreak > lineStart && file.get(lineBreak - 1) == '\r' ? lineBreak - 1 : lineBreak;
+    }
+
+    /**
+     * @return the style key in effect at <code>end</code> given the key in effect at <code>start</code>, both offsets
+     * being line starts, that is outside of any sequence
+     */
+    private long getKeyAfter(long start, long end, long key) {
+        while (start < end) {
+            //lines are short enough for a single parse in practice, the loop only guards against int overflows
+            long chunkEnd = end - start <= Integer.MAX_VALUE ? end : lastLineStartBefore(start + Integer.MAX_VALUE, start);
+            int length = (int) (chunkEnd - start);
+            ANSIParser parser = new ANSIParser(file.asLatin1(start, length));
+            //nothing gets emitted, only the key in effect at the end is of interest
+            parser.parse(0, key, length);
+            key = parser.getLastKey();
+            start = chunkEnd;
+        }
+        return key;
+    }
+
+    private long lastLineStartBefore(long offset, long min) {
+        for(long i = offset - 1; i > min; i--) {
+            if(file.get(i - 1) == '\n') return i;
+        }
+        //a single line longer than 2GB, its sequences past that get ignored
+        return offset;
+    }
+
+    private synchronized void addCheckpoint(int line, long offset, long key) {
+        if(checkpointCount == lines.length) {
+            int capacity = checkpointCount << 1;
+            lines = Arrays.copyOf(lines, capacity);
+            offsets = Arrays.copyOf(offsets, capacity);
+            keys = Arrays.copyOf(keys, capacity);
+        }
+        lines[checkpointCount] = line;
+        offsets[checkpointCount] = offset;
+        keys[checkpointCount] = key;
+        checkpointCount++;
+    }
+}
@@ -0,0 +1,241 @@
+package com.alayouni.ansihighlight;
+
+import com.intellij.ide.ui.UISettings;
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.editor.colors.EditorColorsScheme;
+import com.intellij.openapi.editor.colors.EditorFontType;
+import com.intellij.openapi.editor.markup.EffectType;
+import com.intellij.openapi.editor.markup.TextAttributes;
+import com.intellij.ui.components.JBScrollBar;
+
+import javax.swing.*;
+import java.awt.*;
+import java.awt.event.*;
+
+/**
+ * Read-only view of a {@link ANSIMappedFile} rendering only the visible lines: scrolling goes through scroll bars
+ * counting lines instead of pixels, which keeps working past the 2^31 pixels a swing component can span. Each painted
+ * line gets decoded and parsed on the fly, starting from the style key the {@link ANSILargeFileIndex} locates at the
+ * first visible line.
+ */
+class ANSILargeFileViewer extends JPanel implements Disposable {
+    //longer lines are cut short, only their beginning gets displayed
+    private static final int MAX_DISPLAYED_LINE_LENGTH = 1 << 16;
+
+    private static final int TAB_SIZE = 4;
+
+    //how often the scroll bars catch up with the indexing in progress, in milliseconds
+    private static final int REFRESH_DELAY = 250;
+
+    private final ANSIMappedFile file;
+    private final ANSILargeFileIndex index;
+
+    private final JBScrollBar verticalBar = new JBScrollBar(Adjustable.VERTICAL);
+    private final JBScrollBar horizontalBar = new JBScrollBar(Adjustable.HORIZONTAL);
+    private final Timer refreshTimer;
+
+    //reused across paints
+    private final long[] location = new long[2];
+
+    ANSILargeFileViewer(ANSIMappedFile file, ANSILargeFileIndex index) {
+        super(new BorderLayout());
+        this.file = file;
+        this.index = index;
+
+        JComponent lines = new JComponent() {
+            @Override
+            protected void paintComponent(Graphics g) {
+                paintLines(g, this);
+            }
+        };
+        lines.setFocusable(true);
+        add(lines, BorderLayout.CENTER);
+        add(verticalBar, BorderLayout.EAST);
+        add(horizontalBar, BorderLayout.SOUTH);
+
+        verticalBar.addAdjustmentListener(e -> lines.repaint());
+        horizontalBar.addAdjustmentListener(e -> lines.repaint());
+        lines.addMouseWheelListener(this::scroll);
+        lines.addKeyListener(new KeyAdapter() {
+            @Override
+            public void keyPressed(KeyEvent e) {
+                navigate(e);
+            }
+        });
+        lines.addMouseListener(new MouseAdapter() {
+            @Override
+            public void mousePressed(MouseEvent e) {
+                lines.requestFocusInWindow();
+            }
+        });
+        lines.addComponentListener(new ComponentAdapter() {
+            @Override
+            public void componentResized(ComponentEvent e) {
+                updateScrollBars();
+            }
+        });
+
+        refreshTimer = new Timer(REFRESH_DELAY, e -> {
+            updateScrollBars();
+            if(index.isComplete()) ((Timer) e.getSource()).stop();
+        });
+        refreshTimer.start();
+    }
+
+    JComponent getPreferredFocusedComponent() {
+        return (JComponent) getComponent(0);
+    }
+
+    @Override
+    public void dispose() {
+        refreshTimer.stop();
+    }
+
+    private void updateScrollBars() {
+        Component lines = getComponent(0);
+        int lineHeight = getFontMetrics(schemeFont(EditorFontType.PLAIN)).getHeight();
+        int visibleLines = Math.max(1, lines.getHeight() / lineHeight);
+        int lineCount = index.getLineCount();
+        verticalBar.setValues(Math.min(verticalBar.getValue(), Math.max(0, lineCount - 1)), visibleLines, 0, lineCount + visibleLines - 1);
+        verticalBar.setBlockIncrement(visibleLines);
+
+        int charWidth = getFontMetrics(schemeFont(EditorFontType.PLAIN)).charWidth('m');
+        int width = Math.min(index.getMaxLineLength(), MAX_DISPLAYED_LINE_LENGTH) * charWidth;
+        horizontalBar.setValues(Math.min(horizontalBar.getValue(), width), lines.getWidth(), 0, Math.max(width, lines.getWidth()));
+        horizontalBar.setUnitIncrement(charWidth);
+        horizontalBar.setBlockIncrement(Math.max(charWidth, lines.getWidth() - charWidth));
+        lines.repaint();
+    }
+
+    private void scroll(MouseWheelEvent e) {
+        JScrollBar bar = e.isShiftDown() ? horizontalBar : verticalBar;
+        int unit = e.isShiftDown() ? bar.getUnitIncrement() : 1;
+        bar.setValue(bar.getValue() + e.getUnitsToScroll() * unit);
+    }
+
+    private void navigate(KeyEvent e) {
+        int line = verticalBar.getValue(), page = verticalBar.getVisibleAmount();
+        switch (e.getKeyCode()) {
+            case KeyEvent.VK_UP: line--; break;
+            case KeyEvent.VK_DOWN: line++; break;
+            case KeyEvent.VK_PAGE_UP: line -= page; break;
+            case KeyEvent.VK_PAGE_DOWN: line += page; break;
+            case KeyEvent.VK_HOME: line = 0; break;
+            case KeyEvent.VK_END: line = index.getLineCount() - 1; break;
+            case KeyEvent.VK_LEFT: horizontalBar.setValue(horizontalBar.getValue() - horizontalBar.getUnitIncrement()); return;
+            case KeyEvent.VK_RIGHT: horizontalBar.setValue(horizontalBar.getValue() + horizontalBar.getUnitIncrement()); return;
+            default: return;
+        }
+        verticalBar.setValue(Math.max(0, Math.min(line, index.getLineCount() - 1)));
+        e.consume();
+    }
+
+    private void paintLines(Graphics g, JComponent lines) {
+        UISettings.setupAntialiasing(g);
+        EditorColorsScheme scheme = ANSIColor.colorsScheme;
+        g.setColor(scheme.getDefaultBackground());
+        g.fillRect(0, 0, lines.getWidth(), lines.getHeight());
+
+        FontMetrics metrics = g.getFontMetrics(schemeFont(EditorFontType.PLAIN));
+        int lineHeight = metrics.getHeight(), lineCount = index.getLineCount();
+        int line = verticalBar.getValue(), lastLine = Math.min(lineCount, line + lines.getHeight() / lineHeight + 1);
+        if(line >= lastLine) return;
+
+        index.locate(line, location);
+        long lineStart = location[0], key = location[1];
+        for(int y = 0; line < lastLine; line++, y += lineHeight) {
+            long lineEnd = index.getLineEnd(lineStart);
+            int length = (int) Math.min(lineEnd - lineStart, MAX_DISPLAYED_LINE_LENGTH);
+            String text = file.decode(lineStart, length);
+            ANSIParser parser = new ANSIParser(text);
+            //lines redrawn with carriage returns only show what remains of them, see ANSIOverwriteCollapser
+            ANSIRunTable runs = ANSIOverwriteCollapser.collapse(text, null, parser.parse(0, key, 0), 0, text.length(), null);
+            paintLine(g, text, runs, -horizontalBar.getValue(), y, metrics);
+
+            if(lineEnd - lineStart > length && line + 1 < lastLine) {
+                //the line got cut short, the key in effect at the next line requires parsing it in full
+                index.locate(line + 1, location);
+                lineStart = location[0];
+                key = location[1];
+                continue;
+            }
+            key = parser.getLastKey();
+            lineStart = file.indexOfLineBreak(lineEnd, file.length()) + 1;
+            if(lineStart == 0) break;
+        }
+    }
+
+    /**
+     * paints the segments of text between style boundaries and concealed sequences one after the other
+     */
+    private void paintLine(Graphics g, String text, ANSIRunTable runs, int x, int y, FontMetrics metrics) {
+        int length = text.length(), style = 0, concealed = 0, column = 0;
+        int charWidth = metrics.charWidth('m');
+        for(int start = 0; start < length; ) {
+            if(concealed < runs.getConcealedCount() && runs.getConcealedStart(concealed) == start) {
+                start = runs.getConcealedEnd(concealed++);
+                continue;
+            }
+            while (style < runs.getStyleCount() && runs.getStyleEnd(style) <= start) style++;
+            boolean styled = style < runs.getStyleCount() && runs.getStyleStart(style) <= start;
+            int end = concealed < runs.getConcealedCount() ? runs.getConcealedStart(concealed) : length;
+            if(styled) end = Math.min(end, runs.getStyleEnd(style));
+            else if(style < runs.getStyleCount()) end = Math.min(end, runs.getStyleStart(style));
+
+            String segment = expandTabs(text.substring(start, end), column);
+            TextAttributes attributes = styled ? ANSIHighlighter.getTextAttributes(runs.getStyleKey(style)) : null;
+            paintSegment(g, segment, attributes, x + column * charWidth, y, metrics);
+            column += segment.length();
+            start = end;
+        }
+    }
+
+    private void paintSegment(Graphics g, String segment, TextAttributes attributes, int x, int y, FontMetrics metrics) {
+        EditorColorsScheme scheme = ANSIColor.colorsScheme;
+        int width = metrics.charWidth('m') * segment.length();
+        Color foreground = attributes == null || attributes.getForegroundColor() == null ? scheme.getDefaultForeground() : attributes.getForegroundColor();
+        if(attributes != null && attributes.getBackgroundColor() != null) {
+            g.setColor(attributes.getBackgroundColor());
+            g.fillRect(x, y, width, metrics.getHeight());
+        }
+        g.setColor(foreground);
+        g.setFont(schemeFont(attributes == null ? EditorFontType.PLAIN : fontType(attributes.getFontType())));
+        int baseline = y + metrics.getAscent();
+        g.drawString(segment, x, baseline);
+
+        EffectType effect = attributes == null ? null : attributes.getEffectType();
+        if(effect == EffectType.LINE_UNDERSCORE || effect == EffectType.BOLD_LINE_UNDERSCORE) {
+            g.drawLine(x, baseline + 1, x + width, baseline + 1);
+        } else if(effect == EffectType.STRIKEOUT) {
+            int middle = baseline - metrics.getAscent() / 3;
+            g.drawLine(x, middle, x + width, middle);
+        }
+    }
+
+    private static String expandTabs(String segment, int column) {
+        if(segment.indexOf('\t') == -1) return segment;
+        StringBuilder expanded = new StringBuilder(segment.length() + TAB_SIZE);
+        for(int i = 0; i < segment.length(); i++) {
+            char c = segment.charAt(i);
+            if(c != '\t') {
+                expanded.append(c);
+                continue;
+            }
+            do {
+                expanded.append(' ');
+            } while ((column + expanded.length()) % TAB_SIZE != 0);
+        }
+        return expanded.toString();
+    }
+
+    private static EditorFontType fontType(int fontType) {
+        boolean bold = (fontType & Font.BOLD) != 0, italic = (fontType & Font.ITALIC) != 0;
+        if(bold && italic) return EditorFontType.BOLD_ITALIC;
+        if(bold) return EditorFontType.BOLD;
+        return italic ? EditorFontType.ITALIC : EditorFontType.PLAIN;
+    }
+
+    private static Font schemeFont(EditorFontType type) {
+        return ANSIColor.colorsScheme.getFont(type);
+    }
+}
@@ -0,0 +1,124 @@
+package com.alayouni.ansihighlight;
+
+import com.intellij.lexer.LexerBase;
+import com.intellij.psi.tree.IElementType;
+import com.intellij.util.text.CharArrayUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Splits ansi aware text into sequence tokens and text tokens typed after the style key in effect
+ * (see {@link ANSITokenTypes}), relying on {@link ANSIParser} so tokens match the runs it would produce.
+ * <p>
+ *     Sequences apply on top of the style in effect before them, so each token reports the style in effect at its
+ *     start as its state, interned in a palette owned by the lexer, 0 standing for no style. Lexing can restart with
+ *     the initial state from any token with no style in effect.
+ * </p>
+ */
+class ANSILexer extends LexerBase {
+    private CharSequence buffer;
+    private int endOffset;
+    private ANSIParser parser;
+
+    private int tokenStart, tokenEnd, state;
+    private IElementType tokenType;
+
+    //style key in effect after the current token, 0 if none
+    private long key;
+
+    //supported sequence found while scanning the current text token, so it does not get parsed twice
+    private int nextSeqStart = -1, nextSeqEnd;
+    private long nextSeqKey;
+
+    //styles reported as states, kept across restarts since the highlighter hands states back through start()
+    private final ANSIStylePalette states = new ANSIStylePalette();
+
+    @Override
+    public void start(@NotNull CharSequence buffer, int startOffset, int endOffset, int initialState) {
+        this.buffer = buffer;
+        this.endOffset = endOffset;
+        this.parser = new ANSIParser(buffer, CharArrayUtil.fromSequenceWithoutCopying(buffer));
+        this.key = initialState == 0 ? 0 : states.get(initialState - 1);
+        this.nextSeqStart = -1;
+        this.tokenEnd = startOffset;
+        advance();
+    }
+
+    @Override
+    public int getState() {
+        return state;
+    }
+
+    @Nullable
+    @Override
+    public IElementType getTokenType() {
+        return tokenType;
+    }
+
+    @Override
+    public int getTokenStart() {
+        return tokenStart;
+    }
+
+    @Override
+    public int getTokenEnd() {
+        return tokenEnd;
+    }
+
+    @Override
+    public void advance() {
+        tokenStart = tokenEnd;
+        if(tokenStart >= endOffset) {
+            tokenType = null;
+            return;
+        }
+        if(isSequenceAt(tokenStart)) {
+            tokenType = ANSITokenTypes.SEQUENCE;
+            tokenEnd = Math.min(nextSeqEnd, endOffset);
+            state = toState(key);
+            key = nextSeqKey;
+            nextSeqStart = -1;
+            return;
+        }
+
+        tokenType = ANSIStyleKey.isLegacy(key) ? ANSITokenTypes.text((int) key) : ANSITokenTypes.EXTENDED_TEXT;
+        state = toState(key);
+        int from = parser.getSequenceEnd();
+        while (true) {
+            int escIndex = parser.indexOfESC(from);
+            if(escIndex == -1 || escIndex >= endOffset) {
+                tokenEnd = endOffset;
+                return;
+            }
+            if(isSequenceAt(escIndex)) {
+                tokenEnd = escIndex;
+                return;
+            }
+            from = parser.getSequenceEnd();
+        }
+    }
+
+    private boolean isSequenceAt(int offset) {
+        if(nextSeqStart == offset) return true;
+        if(!parser.parseSequenceAt(offset, key)) return false;
+        nextSeqStart = offset;
+        nextSeqEnd = parser.getSequenceEnd();
+        nextSeqKey = parser.getSequenceKey();
+        return true;
+    }
+
+    private int toState(long key) {
+        return key == 0 ? 0 : states.intern(key) + 1;
+    }
+
+    @NotNull
+    @Override
+    public CharSequence getBufferSequence() {
+        return buffer;
+    }
+
+    @Override
+    public int getBufferEnd() {
+        return endOffset;
+    }
+}
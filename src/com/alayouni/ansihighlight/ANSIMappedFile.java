@@ -0,0 +1,119 @@
+package com.alayouni.ansihighlight;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * Read-only memory mapping of a whole file, split into segments of at most {@link #SEGMENT_SIZE} bytes since a single
+ * mapping is limited to 2GB. Bytes get paged in by the OS on access, so the heap used is independent of the file size.
+ * <p>
+ *     Only charsets encoding ascii chars as single bytes are supported (see {@link #isSupported(Charset)}): line
+ *     breaks and ansi sequences can then be found in the raw bytes, and only the lines actually displayed get decoded.
+ * </p>
+ */
+class ANSIMappedFile {
+    private static final int SEGMENT_SHIFT = 30;
+    private static final int SEGMENT_SIZE = 1 << SEGMENT_SHIFT;
+    private static final int SEGMENT_MASK = SEGMENT_SIZE - 1;
+
+    private final MappedByteBuffer[] segments;
+    private final long length;
+    private final Charset charset;
+
+    ANSIMappedFile(File file, Charset charset) throws IOException {
+        this.charset = charset;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+            length = channel.size();
+            segments = new MappedByteBuffer[(int) ((length + SEGMENT_MASK) >>> SEGMENT_SHIFT)];
+            for(int i = 0; i < segments.length; i++) {
+                long position = (long) i << SEGMENT_SHIFT;
+                //mappings remain valid once the channel gets closed
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(SEGMENT_SIZE, length - position));
+            }
+        }
+    }
+
+    static boolean isSupported(Charset charset) {
+        byte[] bytes = "\n\u001B[0;m".getBytes(charset);
+        return bytes.length == 6 && bytes[0] == '\n' && bytes[1] == 0x1B && bytes[5] == 'm';
+    }
+
+    long length() {
+        return length;
+    }
+
+    byte get(long position) {
+        return segments[(int) (position >>> SEGMENT_SHIFT)].get((int) (position & SEGMENT_MASK));
+    }
+
+    /**
+     * @return position of the first <code>\n</code> at or after <code>from</code> and before <code>end</code>, -1 if
+     * none
+     */
+    long indexOfLineBreak(long from, long end) {
+        while (from < end) {
+            ByteBuffer segment = segments[(int) (from >>> SEGMENT_SHIFT)];
+            int i = (int) (from & SEGMENT_MASK);
+            int segmentEnd = (int) Math.min(segment.limit(), end - from + i);
+            for(; i < segmentEnd; i++) {
+                if(segment.get(i) == '\n') return (from & ~SEGMENT_MASK) + i;
+            }
+            from = (from & ~SEGMENT_MASK) + segmentEnd;
+        }
+        return -1;
+    }
+
+    /**
+     * @return the bytes in [start, start + length) decoded with the file's charset
+     */
+    String decode(long start, int length) {
+        byte[] bytes = new byte[length];
+        for(int i = 0; i < length; i++) {
+            bytes[i] = get(start + i);
+        }
+        return new String(bytes, charset);
+    }
+
+    /**
+     * @return the bytes in [start, start + length) seen as ISO-8859-1 chars, without copying: ansi sequences and line
+     * breaks read the same as in the decoded text, which is enough for {@link ANSIParser} to compute style keys
+     */
+    CharSequence asLatin1(long start, int length) {
+        return new Latin1Sequence(start, length);
+    }
+
+    private class Latin1Sequence implements CharSequence {
+        private final long start;
+        private final int length;
+
+        private Latin1Sequence(long start, int length) {
+            this.start = start;
+            this.length = length;
+        }
+
+        @Override
+        public int length() {
+            return length;
+        }
+
+        @Override
+        public char charAt(int index) {
+            return (char) (get(start + index) & 0xFF);
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return new Latin1Sequence(this.start + start, end - start);
+        }
+
+        @Override
+        public String toString() {
+            return decode(start, length);
+        }
+    }
+}
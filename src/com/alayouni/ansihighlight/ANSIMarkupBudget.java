@@ -0,0 +1,60 @@
+package com.alayouni.ansihighlight;
+
+import com.intellij.openapi.editor.Editor;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.function.Predicate;
+import java.util.function.ToIntFunction;
+
+/**
+ * Project-wide cap on the highlighters and fold regions held by highlighted editors. Once exceeded, the markup of the
+ * editors not on screen gets released, least recently selected first. Their parsed runs are kept so that the markup
+ * can be applied again through {@link HighlightQueue} once they get selected, see
+ * {@link ANSIHighlighter#editorSelected(Editor)}.
+ */
+class ANSIMarkupBudget {
+    /**
+     * highlighters and fold regions held by all the editors of a project (in thousands,
+     * <code>ansi.highlighter.markup.budget.k</code> system property)
+     */
+    static final int MAX_MARKUP_COUNT = Integer.getInteger("ansi.highlighter.markup.budget.k", 500) * 1000;
+
+    //highlighted editors, least recently selected first
+    private final LinkedHashMap<Editor, Boolean> editors = new LinkedHashMap<>(16, 0.75f, true);
+
+    void touched(Editor editor) {
+        editors.put(editor, Boolean.TRUE);
+    }
+
+    void released(Editor editor) {
+        editors.remove(editor);
+    }
+
+    /**
+     * @param visible editors never evicted, typically the selected ones
+     * @param weigher markup held by an editor
+     * @param evictor releases the markup of an editor, false if it can't be released at the moment
+     */
+    void enforce(Collection<Editor> visible, ToIntFunction<Editor> weigher, Predicate<Editor> evictor) {
+        long total = 0;
+        for(Iterator<Editor> it = editors.keySet().iterator(); it.hasNext(); ) {
+            Editor editor = it.next();
+            if(editor.isDisposed()) it.remove();
+            else total += weigher.applyAsInt(editor);
+        }
+        if(total <= MAX_MARKUP_COUNT) return;
+
+        //evicting does not reorder the editors, but the iteration must not overlap with any change of the map
+        List<Editor> candidates = new ArrayList<>(editors.keySet());
+        for(Editor editor : candidates) {
+            if(total <= MAX_MARKUP_COUNT) return;
+            if(visible.contains(editor)) continue;
+            int weight = weigher.applyAsInt(editor);
+            if(weight > 0 && evictor.test(editor)) total -= weight;
+        }
+    }
+}
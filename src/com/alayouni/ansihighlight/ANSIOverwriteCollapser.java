@@ -0,0 +1,453 @@
+package com.alayouni.ansihighlight;
+
+import java.util.Arrays;
+
+/**
+ * Display stage collapsing the output that a terminal would have overwritten, typically progress bars redrawn with
+ * carriage returns, <code>ESC[K</code> (erase in line) and <code>ESC[nA</code> (cursor up). The text is replayed on a
+ * minimal model of the screen rows, and every chunk of text whose cells all end up overwritten or erased gets
+ * concealed along with the line break that follows it, so that a redrawn line costs a single fold region instead of
+ * one per sequence and the styles of the hidden text are dropped.
+ * <p>
+ *     The editor can only hide text, not move it: chunks only partially overwritten remain visible as a whole, and
+ *     rows redrawn through cursor moves show their latest content where it was written in the document. The cursor
+ *     control sequences interpreted here (<code>A</code>, <code>B</code>, <code>G</code> and <code>K</code>) are
+ *     concealed as well. The output is meant for display only: {@link ANSIRunTable} checkpoints are not carried over.
+ * </p>
+ */
+class ANSIOverwriteCollapser {
+    private static final char ESC_CHAR = '\u001B';
+    private static final char CSI_CHAR = '[';
+
+    /**
+     * rows a cursor up move can reach back, older rows are considered out of the screen
+     */
+    private static final int MAX_ROWS = 256;
+
+    private static final int MAX_PARAMETER = 9999;
+
+    private final CharSequence text;
+    private final char[] chars;
+    private final ANSIRunTable runs;
+    private final int[] carriageReturns;
+
+    //ranges to conceal as start, end pairs, in no particular order
+    private int[] hidden = new int[64];
+    private int hiddenCount = 0;
+
+    private final Row[] rows = new Row[MAX_ROWS];
+    private int lastRow, row, column;
+    private Segment segment;
+
+    private ANSIOverwriteCollapser(CharSequence text, char[] chars, ANSIRunTable runs, int[] carriageReturns) {
+        this.text = text;
+        this.chars = chars;
+        this.runs = runs;
+        this.carriageReturns = carriageReturns;
+    }
+
+    /**
+     * @param chars the array backing <code>text</code> if any, see {@link ANSIParser#ANSIParser(CharSequence, char[])}
+     * @param runs the runs parsed from <code>text</code>
+     * @param from start of the range to collapse, screen rows above it are unknown and considered blank
+     * @param carriageReturns sorted offsets of the <code>\n</code> of <code>text</code> standing for a lone carriage
+     *                        return (see {@link ANSICarriageReturnScanner}), null if none. <code>\r</code> chars not
+     *                        followed by <code>\n</code> are carriage returns as well.
+     * @return the collapsed runs, <code>runs</code> itself if nothing got overwritten
+     */
+    static ANSIRunTable collapse(CharSequence text, char[] chars, ANSIRunTable runs, int from, int to, int[] carriageReturns) {
+        ANSIOverwriteCollapser collapser = new ANSIOverwriteCollapser(text, chars, runs, carriageReturns);
+        int start = collapser.replayStart(from, to);
+        if(start < 0) return runs;
+        collapser.replay(start, to);
+        return collapser.hiddenCount == 0 ? runs : collapser.toRunTable();
+    }
+
+    /**
+     * @return the offset the screen gets replayed from, that is far enough above the first carriage return or cursor
+     * control sequence for any cursor up move to be replayed, -1 if there are none
+     */
+    private int replayStart(int from, int to) {
+        int first = -1;
+        int cr = carriageReturns == null ? -1 : firstAtOrAfter(carriageReturns, from);
+        if(cr >= 0 && cr < carriageReturns.length && carriageReturns[cr] < to) first = carriageReturns[cr];
+        int end = first < 0 ? to : first;
+        for(int i = from; i < end; i++) {
+            char c = charAt(i);
+            if(c == '\r' && (i + 1 >= to || charAt(i + 1) != '\n') || c == ESC_CHAR && isCursorControl(i, to)) {
+                first = i;
+                break;
+            }
+        }
+        if(first < 0) return -1;
+        int lines = 0, i = first;
+        for(; i > from; i--) {
+            if(charAt(i - 1) == '\n' && ++lines > MAX_ROWS) break;
+        }
+        return i;
+    }
+
+    private boolean isCursorControl(int offset, int to) {
+        if(offset + 2 >= to || charAt(offset + 1) != CSI_CHAR) return false;
+        int i = offset + 2;
+        while (i < to && (Character.isDigit(charAt(i)) || charAt(i) == ';')) i++;
+        return i < to && isCursorControlFinal(charAt(i));
+    }
+
+    private static boolean isCursorControlFinal(char c) {
+        return c == 'A' || c == 'B' || c == 'G' || c == 'K';
+    }
+
+    private void replay(int from, int to) {
+        lastRow = row = column = 0;
+        rows[0] = new Row();
+        segment = new Segment();
+        int concealed = runs.firstConcealedEndingAfter(from), concealedCount = runs.getConcealedCount();
+        int cr = carriageReturns == null ? 0 : firstAtOrAfter(carriageReturns, from);
+        int chunkStart = from, width = 0;
+        int i = from;
+        while (i < to) {
+            char c = charAt(i);
+            if(c == '\n' || c == '\r') {
+                write(chunkStart, i, width);
+                boolean lineBreak;
+                int end = i + 1;
+                if(c == '\r') {
+                    lineBreak = end < to && charAt(end) == '\n';
+                    if(lineBreak) end++;
+                } else {
+                    while (carriageReturns != null && cr < carriageReturns.length && carriageReturns[cr] < i) cr++;
+                    lineBreak = carriageReturns == null || cr >= carriageReturns.length || carriageReturns[cr] != i;
+                }
+                endSegment(i, end, lineBreak);
+                if(lineBreak) {
+                    moveToRow(row + 1, true);
+                }
+                column = 0;
+                i = chunkStart = end;
+                width = 0;
+            } else if(c == ESC_CHAR) {
+                while (concealed < concealedCount && runs.getConcealedEnd(concealed) <= i) concealed++;
+                if(concealed < concealedCount && runs.getConcealedStart(concealed) == i) {
+                    //concealed chains may hold cursor controls, the other sequences don't move the cursor
+                    int chainEnd = runs.getConcealedEnd(concealed);
+                    if(replayChain(i, chainEnd, chunkStart, width)) {
+                        chunkStart = chainEnd;
+                        width = 0;
+                    }
+                    i = chainEnd;
+                    continue;
+                }
+                int end = controlSequenceEnd(i, to);
+                if(end < 0) {
+                    i++;
+                    continue;
+                }
+                char f = charAt(end - 1);
+                if(isCursorControlFinal(f) && charAt(i + 2) != '?') {
+                    write(chunkStart, i, width);
+                    control(f, parameter(i + 2, end - 1));
+                    hide(i, end);
+                    chunkStart = end;
+                    width = 0;
+                }
+                i = end;
+            } else {
+                width++;
+                i++;
+            }
+        }
+        write(chunkStart, to, width);
+    }
+
+    /**
+     * applies the cursor controls of a concealed chain of sequences, which is already hidden as a whole. The chars
+     * of <code>[chunkStart, from)</code> are written first if the chain holds any.
+     * @return true if the chain held cursor controls
+     */
+    private boolean replayChain(int from, int to, int chunkStart, int width) {
+        boolean written = false;
+        for(int i = from; i < to; ) {
+            int end = controlSequenceEnd(i, to);
+            if(end < 0) {
+                //not a control sequence, skipped up to the next escape char (string terminators included)
+                i++;
+                while (i < to && charAt(i) != ESC_CHAR) i++;
+                continue;
+            }
+            char f = charAt(end - 1);
+            if(isCursorControlFinal(f) && charAt(i + 2) != '?') {
+                if(!written) write(chunkStart, from, width);
+                written = true;
+                control(f, parameter(i + 2, end - 1));
+            }
+            i = end;
+        }
+        return written;
+    }
+
+    /**
+     * @return the end of the CSI sequence starting at <code>offset</code>, -1 if malformed or truncated
+     */
+    private int controlSequenceEnd(int offset, int to) {
+        if(offset + 1 >= to || charAt(offset + 1) != CSI_CHAR) return -1;
+        for(int i = offset + 2; i < to; i++) {
+            char c = charAt(i);
+            if(c >= 0x40 && c <= 0x7E) return i + 1;
+            if(c < 0x20 || c > 0x3F) return -1;
+        }
+        return -1;
+    }
+
+    /**
+     * @return the first parameter of a cursor control sequence, 0 if missing
+     */
+    private int parameter(int from, int end) {
+        int value = 0;
+        for(int i = from; i < end; i++) {
+            char c = charAt(i);
+            if(c < '0' || c > '9') break;
+            if(value <= MAX_PARAMETER) value = value * 10 + c - '0';
+        }
+        return value;
+    }
+
+    private void control(char f, int n) {
+        switch (f) {
+            case 'A':
+                moveToRow(row - Math.max(1, n), false);
+                break;
+            case 'B':
+                moveToRow(row + Math.max(1, n), false);
+                break;
+            case 'G':
+                column = Math.max(1, n) - 1;
+                break;
+            case 'K':
+                if(n == 0) {
+                    rows[row % MAX_ROWS].put(column, Integer.MAX_VALUE, null);
+                } else if(n == 1) {
+                    rows[row % MAX_ROWS].put(0, column + 1, null);
+                } else if(n == 2) {
+                    rows[row % MAX_ROWS].put(0, Integer.MAX_VALUE, null);
+                }
+                break;
+        }
+    }
+
+    /**
+     * @param scroll true for line breaks, which add rows at the bottom of the screen while cursor moves stop there
+     */
+    private void moveToRow(int target, boolean scroll) {
+        if(target > lastRow) {
+            if(!scroll) target = lastRow;
+            while (lastRow < target) {
+                lastRow++;
+                Row r = rows[lastRow % MAX_ROWS];
+                if(r == null) rows[lastRow % MAX_ROWS] = new Row();
+                else r.clear();
+            }
+        }
+        row = Math.max(target, Math.max(0, lastRow - MAX_ROWS + 1));
+    }
+
+    private void write(int start, int end, int width) {
+        if(width == 0) return;
+        Write write = new Write(start, end, segment, width);
+        segment.writes++;
+        rows[row % MAX_ROWS].put(column, column + width, write);
+        column += width;
+    }
+
+    private void endSegment(int breakStart, int breakEnd, boolean lineBreak) {
+        segment.breakStart = breakStart;
+        segment.breakEnd = breakEnd;
+        //blank lines are kept, carriage returns are invisible unless the chunk before them remains visible
+        if(segment.writes == 0 ? !lineBreak : segment.hiddenWrites == segment.writes) hide(breakStart, breakEnd);
+        segment = new Segment();
+    }
+
+    private void overwritten(Write write) {
+        hide(write.start, write.end);
+        Segment s = write.segment;
+        s.hiddenWrites++;
+        if(s.breakStart >= 0 && s.hiddenWrites == s.writes) hide(s.breakStart, s.breakEnd);
+    }
+
+    private void hide(int start, int end) {
+        if(hiddenCount * 2 + 2 > hidden.length) hidden = Arrays.copyOf(hidden, hidden.length << 1);
+        hidden[hiddenCount * 2] = start;
+        hidden[hiddenCount * 2 + 1] = end;
+        hiddenCount++;
+    }
+
+    /**
+     * @return the runs with the hidden ranges merged into the concealed ones, and the styles clipped out of them.
+     * Links are kept as is, hyperlinks over hidden text are left unreachable under the fold regions.
+     */
+    private ANSIRunTable toRunTable() {
+        int[] merged = mergeHidden();
+        int mergedCount = merged.length / 2;
+        ANSIRunTable table = new ANSIRunTable();
+
+        int h = 0;
+        for(int i = 0; i < runs.getStyleCount(); i++) {
+            int start = runs.getStyleStart(i), end = runs.getStyleEnd(i);
+            long key = runs.getStyleKey(i);
+            while (h < mergedCount && merged[h * 2 + 1] <= start) h++;
+            for(int k = h; k < mergedCount && merged[k * 2] < end; k++) {
+                if(merged[k * 2] > start) table.addStyle(start, merged[k * 2], key);
+                start = Math.max(start, merged[k * 2 + 1]);
+            }
+            if(start < end) table.addStyle(start, end, key);
+        }
+
+        //both lists are sorted, touching ranges are joined into a single fold region
+        int c = 0, concealedCount = runs.getConcealedCount();
+        h = 0;
+        int start = -1, end = -1;
+        while (c < concealedCount || h < mergedCount) {
+            int s, e;
+            if(h >= mergedCount || c < concealedCount && runs.getConcealedStart(c) < merged[h * 2]) {
+                s = runs.getConcealedStart(c);
+                e = runs.getConcealedEnd(c++);
+            } else {
+                s = merged[h * 2];
+                e = merged[h * 2 + 1];
+                h++;
+            }
+            if(s <= end) {
+                end = Math.max(end, e);
+                continue;
+            }
+            if(start >= 0) table.addConcealed(start, end);
+            start = s;
+            end = e;
+        }
+        if(start >= 0) table.addConcealed(start, end);
+        table.appendLinks(runs);
+        return table;
+    }
+
+    /**
+     * @return the hidden ranges sorted, overlapping or touching ones joined
+     */
+    private int[] mergeHidden() {
+        long[] sorted = new long[hiddenCount];
+        for(int i = 0; i < hiddenCount; i++) {
+            sorted[i] = (long) hidden[i * 2] << 32 | hidden[i * 2 + 1];
+        }
+        Arrays.sort(sorted);
+        int[] merged = new int[hiddenCount * 2];
+        int count = 0;
+        for(long range : sorted) {
+            int start = (int) (range >>> 32), end = (int) range;
+            if(count > 0 && start <= merged[count * 2 - 1]) {
+                merged[count * 2 - 1] = Math.max(merged[count * 2 - 1], end);
+            } else {
+                merged[count * 2] = start;
+                merged[count * 2 + 1] = end;
+                count++;
+            }
+        }
+        return Arrays.copyOf(merged, count * 2);
+    }
+
+    private char charAt(int offset) {
+        return chars != null ? chars[offset] : text.charAt(offset);
+    }
+
+    private static int firstAtOrAfter(int[] sorted, int value) {
+        int index = Arrays.binarySearch(sorted, value);
+        return index >= 0 ? index : -index - 1;
+    }
+
+    /**
+     * text between two line breaks, carriage returns included
+     */
+    private static class Segment {
+        private int writes = 0, hiddenWrites = 0;
+        private int breakStart = -1, breakEnd;
+    }
+
+    /**
+     * chunk of text written without any cursor move, on <code>cells</code> columns
+     */
+    private static class Write {
+        private final int start, end;
+        private final Segment segment;
+        private int cells;
+
+        private Write(int start, int end, Segment segment, int cells) {
+            this.start = start;
+            this.end = end;
+            this.segment = segment;
+            this.cells = cells;
+        }
+    }
+
+    /**
+     * screen row as the writes shown on it, by column spans sorted and not overlapping
+     */
+    private class Row {
+        private int[] spans = new int[4];
+        private Write[] writes = new Write[2];
+        private int count = 0;
+
+        /**
+         * shows <code>write</code> on columns <code>[from, to)</code>, erases them if null
+         */
+        private void put(int from, int to, Write write) {
+            if(count == 0 || spans[count * 2 - 1] <= from) {
+                //plain output, nothing gets overwritten
+                if(write == null) return;
+                if(count == writes.length) {
+                    spans = Arrays.copyOf(spans, count * 4);
+                    writes = Arrays.copyOf(writes, count * 2);
+                }
+                count = insert(spans, writes, count, from, to, write);
+                return;
+            }
+            int[] newSpans = new int[(count + 2) * 2];
+            Write[] newWrites = new Write[count + 2];
+            int n = 0;
+            boolean inserted = false;
+            for(int i = 0; i < count; i++) {
+                int start = spans[i * 2], end = spans[i * 2 + 1];
+                Write w = writes[i];
+                if(end <= from || start >= to) {
+                    if(start >= to && !inserted) {
+                        n = insert(newSpans, newWrites, n, from, to, write);
+                        inserted = true;
+                    }
+                    n = insert(newSpans, newWrites, n, start, end, w);
+                    continue;
+                }
+                w.cells -= Math.min(end, to) - Math.max(start, from);
+                if(w.cells == 0) overwritten(w);
+                if(start < from) n = insert(newSpans, newWrites, n, start, from, w);
+                if(!inserted) {
+                    n = insert(newSpans, newWrites, n, from, to, write);
+                    inserted = true;
+                }
+                if(end > to) n = insert(newSpans, newWrites, n, to, end, w);
+            }
+            if(!inserted) n = insert(newSpans, newWrites, n, from, to, write);
+            spans = newSpans;
+            writes = newWrites;
+            count = n;
+        }
+
+        private int insert(int[] spans, Write[] writes, int n, int start, int end, Write write) {
+            if(write == null) return n;
+            spans[n * 2] = start;
+            spans[n * 2 + 1] = end;
+            writes[n] = write;
+            return n + 1;
+        }
+
+        private void clear() {
+            count = 0;
+        }
+    }
+}
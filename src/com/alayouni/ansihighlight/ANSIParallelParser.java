@@ -0,0 +1,269 @@
+package com.alayouni.ansihighlight;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Splits large texts into chunks parsed concurrently by {@link ANSIParser} on a {@link ForkJoinPool}, with the exact
+ * same output as a sequential {@link ANSIParser#parse(int, long, int)}. Smaller texts are parsed sequentially.
+ * <p>
+ *     Chunks are split right after line breaks: no sequence spans a line break, so scanning a chunk from its start
+ *     finds the same sequences as scanning the whole text. The style key in effect at the start of each chunk is
+ *     unknown until the previous chunks are parsed though, so chunks get parsed as follows:
+ *     <ol>
+ *         <li>all chunks get parsed concurrently, each summarizing how it transforms the key in effect at its start,
+ *         see {@link ANSIParser#parseChunk(int, int)}</li>
+ *         <li>the keys in effect at the start of each chunk are composed from the previous chunks' transforms</li>
+ *         <li>the leading runs of each chunk that depend on that key (those before its first reset, typically a
+ *         few lines) are parsed again concurrently, this time from the actual key</li>
+ *         <li>the runs are stitched back together, merging the runs split at chunk boundaries</li>
+ *     </ol>
+ * </p>
+ */
+class ANSIParallelParser {
+    /**
+     * chunks are no shorter than this (in MB, <code>ansi.highlighter.parallel.chunk.mb</code> system property), texts
+     * shorter than twice this are parsed sequentially
+     */
+    private static final int MIN_CHUNK_LENGTH = Integer.getInteger("ansi.highlighter.parallel.chunk.mb", 4) << 20;
+
+    //more chunks than threads so that threads finishing early can pick up the remaining chunks
+    private static final int CHUNKS_PER_THREAD = 4;
+
+    private final CharSequence text;
+    private final char[] chars;
+    private final int length;
+
+    private final ForkJoinPool pool;
+    private final int minChunkLength;
+
+    private Runnable cancellationCheck;
+
+    private long lastKey = 0;
+    private int resumeOffset = 0;
+
+    ANSIParallelParser(CharSequence text, char[] chars) {
+        this(text, chars, ForkJoinPool.commonPool(), MIN_CHUNK_LENGTH);
+    }
+
+    /**
+     * @see ANSIParser#ANSIParser(CharSequence, char[])
+     */
+    ANSIParallelParser(CharSequence text, char[] chars, ForkJoinPool pool, int minChunkLength) {
+        this.text = text;
+        this.chars = chars;
+        this.length = text.length();
+        this.pool = pool;
+        this.minChunkLength = minChunkLength;
+    }
+
+    /**
+     * @see ANSIParser#setCancellationCheck(Runnable)
+     */
+    void setCancellationCheck(Runnable check) {
+        this.cancellationCheck = check;
+    }
+
+    /**
+     * @return the parsed runs, trimmed to size since they typically remain queued or cached for a while
+     * @see ANSIParser#parse(int, long, int)
+     */
+    ANSIRunTable parse(int from, long key0, int emitFrom) {
+        List<Chunk> chunks = split(from);
+        if(chunks.size() == 1) {
+            ANSIParser parser = newParser(length);
+            ANSIRunTable table = parser.parse(from, key0, emitFrom);
+            lastKey = parser.getLastKey();
+            resumeOffset = parser.getResumeOffset();
+            table.trimToSize();
+            return table;
+        }
+
+        invokeAll(chunks, chunk -> chunk.parse(emitFrom));
+
+        long key = key0;
+        for(Chunk chunk : chunks) {
+            chunk.key0 = key;
+            key = (key & chunk.parser.getLastProbeKey()) | chunk.parser.getLastKey();
+        }
+        lastKey = key;
+        resumeOffset = chunks.get(chunks.size() - 1).parser.getResumeOffset();
+
+        invokeAll(chunks, chunk -> chunk.parseLeadingRuns(emitFrom));
+        ANSIRunTable table = stitch(chunks);
+        table.trimToSize();
+        return table;
+    }
+
+    /**
+     * @see ANSIParser#getLastKey()
+     */
+    long getLastKey() {
+        return lastKey;
+    }
+
+    /**
+     * @see ANSIParser#getResumeOffset()
+     */
+    int getResumeOffset() {
+        return resumeOffset;
+    }
+
+    private List<Chunk> split(int from) {
+        List<Chunk> chunks = new ArrayList<>();
+        int count = Math.min((length - from) / minChunkLength, pool.getParallelism() * CHUNKS_PER_THREAD);
+        if(count < 2) {
+            chunks.add(new Chunk(from, length));
+            return chunks;
+        }
+        int chunkLength = (length - from) / count, start = from;
+        while (start < length) {
+            int end = start + chunkLength >= length ? length : indexAfterLineBreak(start + chunkLength);
+            chunks.add(new Chunk(start, end));
+            start = end;
+        }
+        return chunks;
+    }
+
+    /**
+     * @return the offset following the first line break at or after <code>offset</code>, the text length if none
+     */
+    private int indexAfterLineBreak(int offset) {
+        for(int i = offset; i < length; i++) {
+            char c = chars != null ? chars[i] : text.charAt(i);
+            if(c == '\n' || c == '\r') return i + 1;
+        }
+        return length;
+    }
+
+    private interface ChunkOperation {
+        void run(Chunk chunk);
+    }
+
+    private void invokeAll(List<Chunk> chunks, ChunkOperation operation) {
+        List<ForkJoinTask<?>> tasks = new ArrayList<>(chunks.size());
+        for(Chunk chunk : chunks) {
+            tasks.add(pool.submit(() -> operation.run(chunk)));
+        }
+        //rethrows the first failure, typically a cancellation, once all the chunks are done with
+        RuntimeException failure = null;
+        for(ForkJoinTask<?> task : tasks) {
+            try {
+                task.join();
+            } catch (RuntimeException e) {
+                if(failure == null) failure = e;
+            }
+        }
+        if(failure != null) throw failure;
+    }
+
+    /**
+     * runs split at chunk boundaries get merged back: the sequential parser never returns touching runs since runs
+     * are separated by the sequences between them
+     */
+    private static ANSIRunTable stitch(List<Chunk> chunks) {
+        ANSIRunTable table = new ANSIRunTable();
+        int pendingStart = -1, pendingEnd = -1;
+        long pendingKey = 0;
+        for(Chunk chunk : chunks) {
+            ANSIRunTable leading = chunk.leadingRuns, runs = chunk.runs;
+            int i = 0, n = runs.getStyleCount();
+            if(leading != null) {
+                int resolvedOffset = chunk.parser.getResolvedOffset();
+                for(int j = 0; j < leading.getStyleCount() && leading.getStyleStart(j) < resolvedOffset; j++) {
+                    int start = leading.getStyleStart(j), end = Math.min(leading.getStyleEnd(j), resolvedOffset);
+                    long key = leading.getStyleKey(j);
+                    if(pendingEnd == start && pendingKey == key) {
+                        pendingEnd = end;
+                        continue;
+                    }
+                    if(pendingStart != -1) table.addStyle(pendingStart, pendingEnd, pendingKey);
+                    pendingStart = start;
+                    pendingEnd = end;
+                    pendingKey = key;
+                }
+                i = runs.firstStyleEndingAfter(chunk.parser.getResolvedOffset());
+            }
+            for(; i < n; i++) {
+                int start = runs.getStyleStart(i), end = runs.getStyleEnd(i);
+                long key = runs.getStyleKey(i);
+                if(pendingEnd == start && pendingKey == key) {
+                    pendingEnd = end;
+                    continue;
+                }
+                if(pendingStart != -1) table.addStyle(pendingStart, pendingEnd, pendingKey);
+                pendingStart = start;
+                pendingEnd = end;
+                pendingKey = key;
+            }
+        }
+        if(pendingStart != -1) table.addStyle(pendingStart, pendingEnd, pendingKey);
+
+        for(Chunk chunk : chunks) {
+            ANSIRunTable runs = chunk.runs;
+            for(int i = 0; i < runs.getConcealedCount(); i++) {
+                table.addConcealed(runs.getConcealedStart(i), runs.getConcealedEnd(i));
+            }
+        }
+
+        //like style runs, the keys recorded at checkpoints are exact past the resolved offset or from the leading runs
+        for(Chunk chunk : chunks) {
+            ANSIRunTable leading = chunk.leadingRuns, runs = chunk.runs;
+            int i = 0;
+            if(leading != null) {
+                int resolvedOffset = chunk.parser.getResolvedOffset();
+                for(int j = 0; j < leading.getCheckpointCount() && leading.getCheckpointOffset(j) < resolvedOffset; j++) {
+                    table.addCheckpoint(leading.getCheckpointOffset(j), leading.getCheckpointKey(j));
+                }
+                i = runs.firstCheckpointAfter(resolvedOffset - 1);
+            }
+            for(; i < runs.getCheckpointCount(); i++) {
+                table.addCheckpoint(runs.getCheckpointOffset(i), runs.getCheckpointKey(i));
+            }
+        }
+
+        //links don't depend on the key in effect, the chunks' ones are exact
+        for(Chunk chunk : chunks) {
+            table.appendLinks(chunk.runs);
+        }
+        return table;
+    }
+
+    private ANSIParser newParser(int end) {
+        ANSIParser parser = new ANSIParser(text, chars, end);
+        parser.setCancellationCheck(cancellationCheck);
+        return parser;
+    }
+
+    private class Chunk {
+        private final int start, end;
+        private ANSIParser parser;
+        private ANSIRunTable runs;
+
+        //the key in effect at start, and the runs parsed again from it over the parser's unresolved lines, if needed
+        private long key0;
+        private ANSIRunTable leadingRuns;
+
+        private Chunk(int start, int end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        private void parse(int emitFrom) {
+            parser = newParser(end);
+            runs = parser.parseChunk(start, Math.max(start, emitFrom));
+        }
+
+        private void parseLeadingRuns(int emitFrom) {
+            //runs parsed from 0 are exact when 0 is the actual initial key
+            int resolvedOffset = parser.getResolvedOffset();
+            if(key0 == 0 || resolvedOffset == start) return;
+            //parsed up to the end of the line rather than the resolved offset, a control string ending there is only
+            //told apart from a truncated one by the escape char that follows it. Runs past it are left out on stitching.
+            int leadingEnd = Math.min(end, indexAfterLineBreak(resolvedOffset));
+            leadingRuns = newParser(leadingEnd).parse(start, key0, Math.max(start, emitFrom));
+        }
+    }
+}
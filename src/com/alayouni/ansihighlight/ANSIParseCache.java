@@ -0,0 +1,73 @@
+package com.alayouni.ansihighlight;
+
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.util.Key;
+
+import java.util.function.Supplier;
+
+/**
+ * Full parse results shared by all the editors of a document (e.g. a log opened in several splitters), keyed by the
+ * document's modification stamp, so the document is parsed once and each editor only pays for applying markup.
+ * Editors of the same document highlighting concurrently wait for the first one to finish parsing instead of
+ * parsing again.
+ * <p>
+ *     Shared results must be left unaltered, see {@link ANSIRunTable#copy()}. An entry is dropped as soon as its
+ *     document changes, and when the last editor of its document gets released.
+ * </p>
+ */
+class ANSIParseCache {
+    private static final Key<Entry> ENTRY_KEY = Key.create("ansi-parse-cache-entry");
+
+    static class Result {
+        final ANSIRunTable runs;
+        final int resumeOffset, windowStart;
+        final long lastKey;
+
+        Result(ANSIRunTable runs, int resumeOffset, long lastKey, int windowStart) {
+            this.runs = runs;
+            this.resumeOffset = resumeOffset;
+            this.lastKey = lastKey;
+            this.windowStart = windowStart;
+        }
+    }
+
+    private static class Entry {
+        private final long stamp;
+        private Result result;
+
+        private Entry(long stamp) {
+            this.stamp = stamp;
+        }
+    }
+
+    private ANSIParseCache() {}
+
+    /**
+     * @param stamp modification stamp of the document snapshot <code>parse</code> works on
+     * @return the cached result for the stamp, otherwise the result of <code>parse</code> which gets cached unless
+     * the document moved on to a newer stamp in the meantime
+     */
+    static Result getOrParse(Document document, long stamp, Supplier<Result> parse) {
+        Entry entry;
+        synchronized (ANSIParseCache.class) {
+            entry = document.getUserData(ENTRY_KEY);
+            if(entry == null || entry.stamp < stamp) {
+                entry = new Entry(stamp);
+                document.putUserData(ENTRY_KEY, entry);
+            } else if(entry.stamp > stamp) {
+                return parse.get();
+            }
+        }
+        //if the parsing thread gets canceled, the next waiting one parses instead
+        synchronized (entry) {
+            if(entry.result == null) entry.result = parse.get();
+            return entry.result;
+        }
+    }
+
+    static void invalidate(Document document) {
+        synchronized (ANSIParseCache.class) {
+            document.putUserData(ENTRY_KEY, null);
+        }
+    }
+}
@@ -0,0 +1,694 @@
+package com.alayouni.ansihighlight;
+
+import java.util.Arrays;
+
+/**
+ * IDE independent scanner for ANSI escape sequences. It scans a {@link CharSequence} and fills an
+ * {@link ANSIRunTable} with the styled runs to highlight, the sequences to conceal and the OSC 8 hyperlinks, without
+ * touching the editor, so it can be profiled and reused outside of the IDE.
+ * <p>
+ *     Graphic rendition sequences are parsed on a fast path since they make up most of the sequences, any other
+ *     sequence of the ECMA-48 grammar is recognized by a table-driven state machine and concealed as is.
+ * </p>
+ */
+class ANSIParser {
+    /**
+     * to be bumped whenever the parsing output changes, so that outdated entries of {@link ANSIHighlightIndex} get
+     * dropped
+     */
+    static final int VERSION = 2;
+
+    /**
+     * distance between two checkpoints (in KB, <code>ansi.highlighter.checkpoint.kb</code> system property), see
+     * {@link ANSIRunTable#addCheckpoint(int, long)}
+     */
+    static final int CHECKPOINT_INTERVAL = Integer.getInteger("ansi.highlighter.checkpoint.kb", 64) << 10;
+
+    private static final char ESC_CHAR = '\u001B';
+    private static final char CSI_CHAR = '[';
+    private static final char SEQ_END = 'm';
+    private static final char SEQ_DELIM = ';';
+
+    /**
+     * number of chars scanned between two calls to the cancellation check, see {@link #setCancellationCheck(Runnable)}
+     */
+    private static final int CHECK_INTERVAL = 1 << 20;
+
+    private static final int RESET = 0;
+
+    private static final int BOLD = 1;
+    private static final int FAINT = 2;
+    private static final int ITALIC = 3;
+    private static final int UNDERLINE = 4;
+    private static final int INVERSE = 7;
+    private static final int STRIKETHROUGH = 9;
+
+    private static final int NORMAL_INTENSITY = 22;
+    private static final int NOT_ITALIC = 23;
+    private static final int NOT_UNDERLINED = 24;
+    private static final int NOT_INVERSE = 27;
+    private static final int NOT_STRIKETHROUGH = 29;
+
+    private static final int EXTENDED_FOREGROUND = 38;
+    private static final int DEFAULT_FOREGROUND = 39;
+    private static final int EXTENDED_BACKGROUND = 48;
+    private static final int DEFAULT_BACKGROUND = 49;
+
+    //second parameter of EXTENDED_FOREGROUND/EXTENDED_BACKGROUND
+    private static final int RGB_COLOR = 2;
+    private static final int PALETTE_COLOR = 5;
+
+    //returned by parseANSICode
+    private static final int MALFORMED_PARAMETER = -1;
+    private static final int MISSING_PARAMETER = -2;
+
+    //larger parameters are not parsed any further, they are unsupported anyway
+    private static final int MAX_PARAMETER = 9999;
+
+    private final CharSequence text;
+    private final int length;
+
+    //the array backing text when it can be accessed without copying, null otherwise
+    private final char[] chars;
+
+    private Runnable cancellationCheck;
+    private int nextCheckOffset = Integer.MAX_VALUE;
+
+    //the sequence under parsing and the style key in effect after it (see ANSIStyleKey), only meaningful if supported
+    private int seqStart, seqEnd;
+    private long seqKey;
+    private boolean seqSupported;
+
+    //set when the sequence under parsing was cut short by the end of the text
+    private boolean seqTruncated;
+
+    //OSC 8 link events of the sequence under parsing, see #recordLink(int, int, int, int)
+    private int seqLinkCount;
+    private int[] linkOffsets = new int[2];
+    private String[] linkTargets = new String[2];
+
+    //parsing outcome needed to resume parsing once more text gets appended, see #parse(int, long, int)
+    private long lastKey = 0;
+    private int resumeOffset = 0;
+
+    //see #parseChunk(int, int)
+    private long probeKey;
+    private int resolvedOffset;
+
+    ANSIParser(CharSequence text) {
+        this(text, null);
+    }
+
+    /**
+     * @param text the text to scan, it is referenced and never copied so it must not change while being parsed
+     * @param chars the array backing <code>text</code> if any (only its first <code>text.length()</code> chars are
+     *              read), scanned directly instead of going through {@link CharSequence#charAt(int)}
+     */
+    ANSIParser(CharSequence text, char[] chars) {
+        this(text, chars, text.length());
+    }
+
+    /**
+     * @param end scanning stops at this offset as if the text ended there, see {@link ANSIParallelParser}
+     */
+    ANSIParser(CharSequence text, char[] chars, int end) {
+        this.text = text;
+        this.length = end;
+        this.chars = chars;
+    }
+
+    /**
+     * @param check run every {@link #CHECK_INTERVAL} scanned chars, expected to throw to abort parsing
+     */
+    void setCancellationCheck(Runnable check) {
+        this.cancellationCheck = check;
+        this.nextCheckOffset = check == null ? Integer.MAX_VALUE : 0;
+    }
+
+    static ANSIRunTable parse(CharSequence text) {
+        return new ANSIParser(text).parse(0, 0, 0);
+    }
+
+    /**
+     * @param from offset to start parsing from, must not fall inside an ansi sequence
+     * @param key0 style key in effect at <code>from</code>, 0 if none
+     * @param emitFrom runs and sequences ending before this offset are parsed but left out of the returned table
+     * <p>
+     *     A checkpoint is recorded at every multiple of {@link #CHECKPOINT_INTERVAL} past <code>emitFrom</code>,
+     *     except for those falling inside a supported sequence or a sequence truncated by the end of the text, so
+     *     that parsing can always resume from a checkpoint with the key recorded there.
+     * </p>
+     */
+    ANSIRunTable parse(int from, long key0, int emitFrom) {
+        return parse(from, key0, key0, emitFrom);
+    }
+
+    /**
+     * Parses a chunk of the text without knowing the style key in effect at its start, the same way
+     * {@link #parse(int, long, int)} would with 0 as the initial key. Every code being applied as
+     * <code>key = (key & resetMask) | mask</code>, the key in effect at any offset is such a transform of the unknown
+     * initial key, and the chunk's transform gets summarized by parsing from two initial keys at once: 0, and a probe
+     * with all bits set. The probe is only applied to sequences while both keys differ, so that its cost vanishes past
+     * the first reset. The returned runs are exact past {@link #getResolvedOffset()}.
+     * @param from offset to start parsing from, must not fall inside an ansi sequence
+     */
+    ANSIRunTable parseChunk(int from, int emitFrom) {
+        return parse(from, 0, ~0L, emitFrom);
+    }
+
+    private ANSIRunTable parse(int from, long key0, long probeKey0, int emitFrom) {
+        probeKey = probeKey0;
+        resolvedOffset = probeKey0 == key0 ? from : length;
+        ANSIRunTable table = new ANSIRunTable();
+        int start0 = from, truncatedStart = length;
+        long nextCheckpoint = (Math.max(from, emitFrom) + (long) CHECKPOINT_INTERVAL - 1) / CHECKPOINT_INTERVAL * CHECKPOINT_INTERVAL;
+        seqStart = indexOfESC(from);
+        if(seqStart == -1 && key0 != 0 && from < length && length > emitFrom) {
+            //no sequence past from, the attributes in effect still apply up to the end
+            table.addStyle(Math.max(from, emitFrom), length, key0);
+        }
+        while (seqStart >= 0) {
+            extractTextAttributesFromANSIEscapeSequence(key0);
+            if(!seqSupported) {
+                if(seqTruncated) truncatedStart = seqStart;
+                seqStart = seqEnd < length ? indexOfESC(seqEnd) : -1;
+            } else {
+                if(key0 != 0 && start0 < seqStart && seqStart > emitFrom) {
+                    table.addStyle(Math.max(start0, emitFrom), seqStart, key0);
+                }
+                if(seqEnd > emitFrom) {
+                    table.addConcealed(seqStart, seqEnd);
+                    for(int i = 0; i < seqLinkCount; i++) table.addLink(linkOffsets[i], linkTargets[i]);
+                }
+                for(; nextCheckpoint <= seqStart; nextCheckpoint += CHECKPOINT_INTERVAL) {
+                    table.addCheckpoint((int) nextCheckpoint, key0);
+                }
+                while (nextCheckpoint < seqEnd) nextCheckpoint += CHECKPOINT_INTERVAL;
+
+                start0 = seqEnd;
+                probeKey = probeKey == key0 ? seqKey : probeSequence();
+                key0 = seqKey;
+                if(start0 == length) break;
+                seqStart = indexOfESC(start0);
+            }
+            if(seqStart == -1 && key0 != 0 && start0 < length && length > emitFrom) {
+                table.addStyle(Math.max(start0, emitFrom), length, key0);
+            }
+        }
+
+        lastKey = key0;
+        //an escape char at the very end may be the beginning of a sequence that is still being written
+        if(truncatedStart == length && length > 0 && charAt(length - 1) == ESC_CHAR) truncatedStart = length - 1;
+        resumeOffset = Math.max(from, truncatedStart);
+        for(; nextCheckpoint < resumeOffset; nextCheckpoint += CHECKPOINT_INTERVAL) {
+            table.addCheckpoint((int) nextCheckpoint, key0);
+        }
+        return table;
+    }
+
+    /**
+     * @return style key in effect at the end of the text after the last call to {@link #parse(int, long, int)}
+     */
+    long getLastKey() {
+        return lastKey;
+    }
+
+    /**
+     * @return the key in effect at the end of the text after the last call to {@link #parseChunk(int, int)} had the
+     * initial key had all its bits set, so that the actual key is <code>(initialKey & lastProbeKey) | lastKey</code>
+     */
+    long getLastProbeKey() {
+        return probeKey;
+    }
+
+    /**
+     * @return offset from which the runs returned by the last call to {@link #parseChunk(int, int)} no longer depend
+     * on the initial key, the end of the text if they depend on it all the way
+     */
+    int getResolvedOffset() {
+        return resolvedOffset;
+    }
+
+    /**
+     * @return offset from which parsing must resume when text gets appended, that is the end of the text unless
+     * it ends with a truncated sequence in which case the start of that sequence is returned
+     */
+    int getResumeOffset() {
+        return resumeOffset;
+    }
+
+    /**
+     * Parses the sequence (or chain of adjacent sequences) starting at <code>start</code> the same way
+     * {@link #parse(int, long, int)} would, for callers such as {@link ANSILexer} that walk the text token by token.
+     * @param key style key in effect before the sequence
+     * @return false if no supported sequence starts at <code>start</code>, in which case {@link #getSequenceEnd()}
+     * returns the offset scanning must resume from
+     */
+    boolean parseSequenceAt(int start, long key) {
+        seqStart = start;
+        if(start >= length || charAt(start) != ESC_CHAR) {
+            seqEnd = start + 1;
+            seqSupported = false;
+            return false;
+        }
+        extractTextAttributesFromANSIEscapeSequence(key);
+        return seqSupported;
+    }
+
+    int getSequenceEnd() {
+        return seqEnd;
+    }
+
+    /**
+     * @return style key in effect after the last parsed sequence, 0 after a reset
+     */
+    long getSequenceKey() {
+        return seqKey;
+    }
+
+    /**
+     * applies the supported sequence just parsed to the probe key as well, see {@link #parseChunk(int, int)}
+     * @return the probe key in effect after the sequence
+     */
+    private long probeSequence() {
+        long key = seqKey;
+        extractTextAttributesFromANSIEscapeSequence(probeKey);
+        long probe = seqKey;
+        seqKey = key;
+        if(probe == key) resolvedOffset = seqEnd;
+        return probe;
+    }
+
+    /**
+     * Parses the chain of adjacent sequences starting at {@link #seqStart}, each applying on top of the style in
+     * effect. Graphic rendition sequences go through {@link #parseGraphicRendition()}, any other sequence is scanned
+     * by {@link #scanSequence(int)} and concealed without affecting the style. The chain stops at the first malformed
+     * sequence, which is left visible.
+     */
+    private void extractTextAttributesFromANSIEscapeSequence(long key) {
+        seqKey = key;
+        seqSupported = false;
+        seqTruncated = false;
+        seqLinkCount = 0;
+        int end = seqStart;
+        while (end < length && charAt(end) == ESC_CHAR) {
+            long chainKey = seqKey;
+            seqEnd = end;
+            if(!parseGraphicRendition()) {
+                seqKey = chainKey;
+                int sequenceEnd = scanSequence(end);
+                if(sequenceEnd < 0) {
+                    if(end == seqStart) {
+                        seqTruncated = sequenceEnd == TRUNCATED;
+                        //the rest of the text may belong to the sequence being written, otherwise scanning resumes
+                        //right after the escape char
+                        end = seqTruncated ? length : end + 1;
+                    }
+                    break;
+                }
+                seqEnd = sequenceEnd;
+            }
+            end = seqEnd;
+            seqSupported = true;
+        }
+        seqEnd = end;
+    }
+
+    /**
+     * Fast path for the graphic rendition sequences, i.e. <code>ESC[</code> followed by codes separated by
+     * <code>;</code> and ending with <code>m</code>, applied to {@link #seqKey} while being read.
+     * @return false if the sequence at {@link #seqEnd} is anything else, {@link #seqKey} is then left for the caller
+     * to restore
+     */
+    private boolean parseGraphicRendition() {
+        if(seqEnd + 1 >= length || charAt(seqEnd + 1) != CSI_CHAR) return false;
+        seqEnd += 2;
+        int code;
+        do {
+            code = parseANSICode();
+            if(code == MALFORMED_PARAMETER) return false;
+            if(code == EXTENDED_FOREGROUND || code == EXTENDED_BACKGROUND) {
+                if(!parseExtendedColor(code == EXTENDED_FOREGROUND)) return false;
+            } else if(code < CODE_COUNT) {
+                seqKey = (seqKey & RESET_MASKS[code]) | MASKS[code];
+            }
+        } while(charAt(seqEnd - 1) == SEQ_DELIM);
+        return true;
+    }
+
+    /**
+     * Parses the parameters following a 38 (foreground) or 48 (background) code, that is <code>5;n</code> for a color
+     * of the 256 colors palette, or <code>2;r;g;b</code> for an rgb color. Missing or out of range parameters are
+     * ignored the same way unsupported codes are.
+     * @return false if the sequence is malformed
+     */
+    private boolean parseExtendedColor(boolean foreground) {
+        int mode = nextParameter();
+        if(mode == PALETTE_COLOR) {
+            int index = nextParameter();
+            if(index < 0 || index > 255) return index != MALFORMED_PARAMETER;
+            seqKey = foreground ? ANSIStyleKey.withForegroundIndex(seqKey, index) : ANSIStyleKey.withBackgroundIndex(seqKey, index);
+        } else if(mode == RGB_COLOR) {
+            int r = nextParameter(), g = r < 0 ? r : nextParameter(), b = g < 0 ? g : nextParameter();
+            if(b < 0) return b != MALFORMED_PARAMETER;
+            if(r > 255 || g > 255 || b > 255) return true;
+            int rgb = (r << 16) | (g << 8) | b;
+            seqKey = foreground ? ANSIStyleKey.withForegroundRGB(seqKey, rgb) : ANSIStyleKey.withBackgroundRGB(seqKey, rgb);
+        } else {
+            return mode != MALFORMED_PARAMETER;
+        }
+        return true;
+    }
+
+    private int nextParameter() {
+        if(charAt(seqEnd - 1) != SEQ_DELIM) return MISSING_PARAMETER;
+        return parseANSICode();
+    }
+
+    /**
+     * @return the parsed parameter, 0 if empty as per ECMA-48, or {@link #MALFORMED_PARAMETER}
+     */
+    private int parseANSICode() {
+        int code = 0, d;
+        char c;
+        while (seqEnd < length) {
+            c = charAt(seqEnd++);
+            if(c == SEQ_DELIM || c == SEQ_END) return code;
+            d = c - '0';
+            if(d < 0 || d > 9) {
+                //the offending char may start the next sequence, scanning resumes from it
+                seqEnd--;
+                return MALFORMED_PARAMETER;
+            }
+            if(code <= MAX_PARAMETER)
+                code = code * 10 + d;
+        }
+        return MALFORMED_PARAMETER;
+    }
+
+    /**
+     * Scans the sequence starting at <code>start</code> with the state machine described by {@link #TRANSITIONS}:
+     * escape sequences, control sequences (private modes and intermediates included) and control strings (OSC, DCS,
+     * SOS, PM and APC) ended by BEL or ST. Strings are given up on at a line break so that no sequence spans lines.
+     * OSC 8 hyperlinks get recorded as link events, see {@link #getLinkEventCount()}.
+     * @return the end of the sequence, {@link #REJECTED} if malformed or {@link #TRUNCATED} if cut short by the end
+     * of the text
+     */
+    private int scanSequence(int start) {
+        int state = ESCAPE;
+        for(int i = start + 1; i < length; i++) {
+            char c = charAt(i);
+            int next = TRANSITIONS[state * CLASS_COUNT + (c < CLASSES.length ? CLASSES[c] : NON_ASCII)];
+            if(next < ACCEPT) {
+                state = next;
+                continue;
+            }
+            if(next == REJECT) return REJECTED;
+            if(next == ACCEPT_BEFORE) {
+                //a string aborted by the escape char at i - 1, which may start the next sequence of the chain
+                return i - 1;
+            }
+            if(state == STRING || state == STRING_ESC) {
+                int payloadEnd = state == STRING ? i : i - 1;
+                if(charAt(start + 1) == OSC_CHAR) recordLink(start, start + 2, payloadEnd, i + 1);
+            }
+            return i + 1;
+        }
+        return TRUNCATED;
+    }
+
+    /**
+     * records the link event of an OSC 8 sequence, i.e. <code>ESC]8;params;uri</code>: the link opens at the end of
+     * the sequence, an empty uri closes it at its start
+     */
+    private void recordLink(int start, int payloadStart, int payloadEnd, int end) {
+        if(payloadEnd - payloadStart < 3 || charAt(payloadStart) != '8' || charAt(payloadStart + 1) != SEQ_DELIM) return;
+        int uriStart = payloadStart + 2;
+        while (uriStart < payloadEnd && charAt(uriStart) != SEQ_DELIM) uriStart++;
+        if(uriStart++ == payloadEnd) return;
+        if(seqLinkCount == linkOffsets.length) {
+            linkOffsets = Arrays.copyOf(linkOffsets, seqLinkCount << 1);
+            linkTargets = Arrays.copyOf(linkTargets, seqLinkCount << 1);
+        }
+        if(uriStart == payloadEnd) {
+            linkOffsets[seqLinkCount] = start;
+            linkTargets[seqLinkCount++] = null;
+        } else {
+            linkOffsets[seqLinkCount] = end;
+            linkTargets[seqLinkCount++] = chars != null ? new String(chars, uriStart, payloadEnd - uriStart) :
+                    text.subSequence(uriStart, payloadEnd).toString();
+        }
+    }
+
+    /**
+     * @return number of OSC 8 link events found in the last parsed sequence (or chain of sequences)
+     */
+    int getLinkEventCount() {
+        return seqLinkCount;
+    }
+
+    int getLinkEventOffset(int index) {
+        return linkOffsets[index];
+    }
+
+    /**
+     * @return the uri of the link opened by the event, null if it closes the link in effect
+     */
+    String getLinkEventTarget(int index) {
+        return linkTargets[index];
+    }
+
+    private char charAt(int offset) {
+        return chars != null ? chars[offset] : text.charAt(offset);
+    }
+
+    int indexOfESC(int from) {
+        int end, index;
+        while (true) {
+            if(from >= nextCheckOffset) {
+                cancellationCheck.run();
+                nextCheckOffset = from + Math.min(CHECK_INTERVAL, length - from);
+            }
+            end = Math.min(length, nextCheckOffset);
+            index = chars != null ? indexOfESC(chars, from, end) : indexOfESC(text, from, end);
+            if(index != -1 || end <= from || end == length) return index;
+            from = end;
+        }
+    }
+
+    private static int indexOfESC(char[] chars, int from, int end) {
+        for(int i = from; i < end; i++) {
+            if(chars[i] == ESC_CHAR) return i;
+        }
+        return -1;
+    }
+
+    private static int indexOfESC(CharSequence text, int from, int end) {
+        for(int i = from; i < end; i++) {
+            if(text.charAt(i) == ESC_CHAR) return i;
+        }
+        return -1;
+    }
+
+
+    //______________________________Pre-calculations to accelerate parsing______________________________________
+
+    //see ANSIHighlighter#ALL_ATTRIBUTES and ANSIStyleKey
+    private static final int FOREGROUND_START_CODE = 30;
+    private static final int FOREGROUND_END_CODE = 37;
+
+    private static final int BACKGROUND_START_CODE = 40;
+    private static final int BACKGROUND_END_CODE = 47;
+
+    private static final int BRIGHT_FOREGROUND_START_CODE = 90;
+    private static final int BRIGHT_FOREGROUND_END_CODE = 97;
+
+    private static final int BRIGHT_BACKGROUND_START_CODE = 100;
+    private static final int BRIGHT_BACKGROUND_END_CODE = 107;
+
+    //codes from this one on are ignored
+    private static final int CODE_COUNT = 108;
+
+    /**
+     * To infer the style key (see {@link ANSIStyleKey}) matching a parsed ansi sequence, the parser proceeds as
+     * follows:
+     * <ul>
+     *     <li>Start from the key in effect before the sequence, 0 if none</li>
+     *     <li>For each parsed code in the sequence apply the following formula
+     *     <code>key = (key & RESET_MASKS[code]) | MASKS[code]</code></li>
+     * </ul>
+     * <p>
+     *     Example: say the parsed code is 35 (magenta foreground), here the matching reset mask would clear both the
+     *     legacy and the extended foreground fields, and the mask would be ...0000 0110 000b. Notice the use of
+     *     0110b = 6 instead of 0101b = 5, that is because 0000 maps to null (no foreground color code specified in the
+     *     sequence), which means black (code 30) should map to 0001b instead of 0000b.
+     * </p>
+     *
+     * <p>
+     *     Both arrays are pre-calculated at startup for each ANSI code from 0 to 107, unsupported codes leave the key
+     *     unchanged. Codes 38 and 48 take extra parameters and are handled by {@link #parseExtendedColor(boolean)}
+     *     instead.
+     * </p>
+     *
+     * <p>
+     *     Two array lookups per code keep the calculation of keys very cheap, which is important for large files with
+     *     a large number of ansi sequences. Keys of the common cases remain ids indexing pre-loaded TextAttributes.
+     * </p>
+     */
+    private static final long[] RESET_MASKS = new long[CODE_COUNT];
+    private static final long[] MASKS = new long[CODE_COUNT];
+
+    static {
+        Arrays.fill(RESET_MASKS, ~0L);
+
+        RESET_MASKS[RESET] = 0;
+        set(BOLD, ANSIStyleKey.BOLD);
+        set(FAINT, ANSIStyleKey.FAINT);
+        set(ITALIC, ANSIStyleKey.ITALIC);
+        set(UNDERLINE, ANSIStyleKey.UNDERLINE);
+        set(INVERSE, ANSIStyleKey.INVERSE);
+        set(STRIKETHROUGH, ANSIStyleKey.STRIKETHROUGH);
+
+        clear(NORMAL_INTENSITY, ANSIStyleKey.BOLD | ANSIStyleKey.FAINT);
+        clear(NOT_ITALIC, ANSIStyleKey.ITALIC);
+        clear(NOT_UNDERLINED, ANSIStyleKey.UNDERLINE);
+        clear(NOT_INVERSE, ANSIStyleKey.INVERSE);
+        clear(NOT_STRIKETHROUGH, ANSIStyleKey.STRIKETHROUGH);
+        clear(DEFAULT_FOREGROUND, ANSIStyleKey.FOREGROUND_MASK);
+        clear(DEFAULT_BACKGROUND, ANSIStyleKey.BACKGROUND_MASK);
+
+        setupColorsMasks();
+    }
+
+    private static void set(int code, long bits) {
+        RESET_MASKS[code] = ~bits;
+        MASKS[code] = bits;
+    }
+
+    private static void clear(int code, long bits) {
+        RESET_MASKS[code] = ~bits;
+        MASKS[code] = 0;
+    }
+
+    private static void setupColorsMasks() {
+        long resetMask = ~ANSIStyleKey.FOREGROUND_MASK;
+        for(int colorCode = FOREGROUND_START_CODE; colorCode <= FOREGROUND_END_CODE; colorCode ++) {
+            RESET_MASKS[colorCode] = resetMask;
+            MASKS[colorCode] = ANSIStyleKey.withForegroundIndex(0, colorCode - FOREGROUND_START_CODE);
+        }
+        for(int colorCode = BRIGHT_FOREGROUND_START_CODE; colorCode <= BRIGHT_FOREGROUND_END_CODE; colorCode ++) {
+            RESET_MASKS[colorCode] = resetMask;
+            MASKS[colorCode] = ANSIStyleKey.withForegroundIndex(0, colorCode - BRIGHT_FOREGROUND_START_CODE + 8);
+        }
+
+        resetMask = ~ANSIStyleKey.BACKGROUND_MASK;
+        for(int colorCode = BACKGROUND_START_CODE; colorCode <= BACKGROUND_END_CODE; colorCode ++) {
+            RESET_MASKS[colorCode] = resetMask;
+            MASKS[colorCode] = ANSIStyleKey.withBackgroundIndex(0, colorCode - BACKGROUND_START_CODE);
+        }
+        for(int colorCode = BRIGHT_BACKGROUND_START_CODE; colorCode <= BRIGHT_BACKGROUND_END_CODE; colorCode ++) {
+            RESET_MASKS[colorCode] = resetMask;
+            MASKS[colorCode] = ANSIStyleKey.withBackgroundIndex(0, colorCode - BRIGHT_BACKGROUND_START_CODE + 8);
+        }
+    }
+
+    //char classes of the sequences state machine, chars past 0x7F are NON_ASCII
+    private static final int CONTROL = 0;
+    private static final int BEL = 1;
+    private static final int NEWLINE = 2;
+    private static final int ESC = 3;
+    //0x20-0x2F
+    private static final int INTERMEDIATE = 4;
+    private static final int DIGIT = 5;
+    //0x3A-0x3F, private parameters included
+    private static final int PARAM = 6;
+    private static final int CSI = 7;
+    private static final int OSC = 8;
+    //introducers of DCS, SOS, PM and APC strings
+    private static final int STRING_INTRODUCER = 9;
+    private static final int ST = 10;
+    //any other char from 0x40 to 0x7E
+    private static final int FINAL = 11;
+    private static final int NON_ASCII = 12;
+    private static final int CLASS_COUNT = 13;
+
+    //states, ESCAPE being the one right after the escape char
+    private static final int ESCAPE = 0;
+    private static final int ESC_INTERMEDIATE = 1;
+    private static final int CSI_PARAM = 2;
+    private static final int CSI_INTERMEDIATE = 3;
+    //parameters following intermediates, the sequence is consumed up to its final char
+    private static final int CSI_IGNORE = 4;
+    private static final int STRING = 5;
+    private static final int STRING_ESC = 6;
+    private static final int STATE_COUNT = 7;
+
+    //actions, the sequence ends with the current char, right before the previous one or is malformed
+    private static final int ACCEPT = 16;
+    private static final int ACCEPT_BEFORE = 17;
+    private static final int REJECT = 18;
+
+    //returned by scanSequence
+    private static final int REJECTED = -1;
+    private static final int TRUNCATED = -2;
+
+    private static final char OSC_CHAR = ']';
+
+    private static final byte[] CLASSES = new byte[0x80];
+
+    /**
+     * next state (or action) indexed by <code>state * CLASS_COUNT + charClass</code>, so that scanning a sequence takes
+     * a couple of array lookups per char
+     */
+    private static final byte[] TRANSITIONS = new byte[STATE_COUNT * CLASS_COUNT];
+
+    static {
+        for(int c = 0; c < 0x20; c++) CLASSES[c] = CONTROL;
+        for(int c = 0x20; c < 0x30; c++) CLASSES[c] = INTERMEDIATE;
+        for(int c = '0'; c <= '9'; c++) CLASSES[c] = DIGIT;
+        for(int c = 0x3A; c < 0x40; c++) CLASSES[c] = PARAM;
+        for(int c = 0x40; c < 0x7F; c++) CLASSES[c] = FINAL;
+        CLASSES[0x7F] = CONTROL;
+        CLASSES[0x07] = BEL;
+        CLASSES['\n'] = CLASSES['\r'] = NEWLINE;
+        CLASSES[ESC_CHAR] = ESC;
+        CLASSES[CSI_CHAR] = CSI;
+        CLASSES[OSC_CHAR] = OSC;
+        CLASSES['P'] = CLASSES['X'] = CLASSES['^'] = CLASSES['_'] = STRING_INTRODUCER;
+        CLASSES['\\'] = ST;
+
+        Arrays.fill(TRANSITIONS, (byte) REJECT);
+        int[] finals = {DIGIT, PARAM, CSI, OSC, STRING_INTRODUCER, ST, FINAL};
+
+        transition(ESCAPE, ESC_INTERMEDIATE, INTERMEDIATE);
+        transition(ESCAPE, ACCEPT, DIGIT, PARAM, ST, FINAL);
+        transition(ESCAPE, CSI_PARAM, CSI);
+        transition(ESCAPE, STRING, OSC, STRING_INTRODUCER);
+
+        transition(ESC_INTERMEDIATE, ESC_INTERMEDIATE, INTERMEDIATE);
+        transition(ESC_INTERMEDIATE, ACCEPT, finals);
+
+        transition(CSI_PARAM, CSI_PARAM, DIGIT, PARAM);
+        transition(CSI_PARAM, CSI_INTERMEDIATE, INTERMEDIATE);
+        transition(CSI_PARAM, ACCEPT, CSI, OSC, STRING_INTRODUCER, ST, FINAL);
+
+        transition(CSI_INTERMEDIATE, CSI_INTERMEDIATE, INTERMEDIATE);
+        transition(CSI_INTERMEDIATE, CSI_IGNORE, DIGIT, PARAM);
+        transition(CSI_INTERMEDIATE, ACCEPT, CSI, OSC, STRING_INTRODUCER, ST, FINAL);
+
+        transition(CSI_IGNORE, CSI_IGNORE, INTERMEDIATE, DIGIT, PARAM);
+        transition(CSI_IGNORE, ACCEPT, CSI, OSC, STRING_INTRODUCER, ST, FINAL);
+
+        transition(STRING, STRING, CONTROL, INTERMEDIATE, DIGIT, PARAM, CSI, OSC, STRING_INTRODUCER, ST, FINAL, NON_ASCII);
+        transition(STRING, ACCEPT, BEL);
+        transition(STRING, STRING_ESC, ESC);
+
+        transition(STRING_ESC, ACCEPT, ST);
+        transition(STRING_ESC, ACCEPT_BEFORE, CONTROL, BEL, NEWLINE, ESC, INTERMEDIATE, DIGIT, PARAM, CSI, OSC,
+                STRING_INTRODUCER, FINAL, NON_ASCII);
+    }
+
+    private static void transition(int state, int next, int... classes) {
+        for(int c : classes) TRANSITIONS[state * CLASS_COUNT + c] = (byte) next;
+    }
+}
@@ -0,0 +1,487 @@
+package com.alayouni.ansihighlight;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Packed output of {@link ANSIParser}, kept in growable primitive arrays instead of one object per span:
+ * <ul>
+ *     <li>style runs are stored as consecutive <code>start, end, id</code> triples, where id is the run's style key
+ *     when it is a legacy id indexing <code>ANSIHighlighter#ALL_ATTRIBUTES</code>, and otherwise
+ *     {@link #EXTENDED_ID} plus the index of the key in the table's {@link ANSIStylePalette}</li>
+ *     <li>concealed ranges (the ansi sequences themselves) are stored as consecutive <code>start, end</code> pairs</li>
+ *     <li>checkpoints, sparse offsets recorded by the parser along with the style key in effect there, from which
+ *     parsing can be resumed after an edit instead of starting over, see {@link ANSIIncrementalParser}</li>
+ *     <li>link events of the OSC 8 hyperlinks, offsets along with the uri of the link opened there or null where the
+ *     link in effect gets closed. Each link extends from its event to the next one.</li>
+ * </ul>
+ * All tables are filled in ascending offset order.
+ */
+class ANSIRunTable {
+    private static final int INITIAL_CAPACITY = 64;
+
+    private static final int EXTENDED_ID = (int) ANSIStyleKey.LEGACY_MASK + 1;
+
+    private int[] styles = new int[INITIAL_CAPACITY * 3];
+    private int styleCount = 0;
+
+    private int[] concealed = new int[INITIAL_CAPACITY * 2];
+    private int concealedCount = 0;
+
+    private int[] checkpointOffsets = new int[0];
+    private long[] checkpointKeys = new long[0];
+    private int checkpointCount = 0;
+
+    private int[] linkOffsets = new int[0];
+    private String[] linkTargets = new String[0];
+    private int linkCount = 0;
+
+    private final ANSIStylePalette palette = new ANSIStylePalette();
+
+    void addStyle(int start, int end, long key) {
+        addStyle(start, end, ANSIStyleKey.isLegacy(key) ? (int) key : EXTENDED_ID + palette.intern(key));
+    }
+
+    private void addStyle(int start, int end, int id) {
+        int i = styleCount * 3;
+        if(i + 3 > styles.length) styles = Arrays.copyOf(styles, Math.max(styles.length << 1, INITIAL_CAPACITY * 3));
+        styles[i] = start;
+        styles[i + 1] = end;
+        styles[i + 2] = id;
+        styleCount++;
+    }
+
+    void addConcealed(int start, int end) {
+        int i = concealedCount << 1;
+        if(i + 2 > concealed.length) concealed = Arrays.copyOf(concealed, Math.max(concealed.length << 1, INITIAL_CAPACITY * 2));
+        concealed[i] = start;
+        concealed[i + 1] = end;
+        concealedCount++;
+    }
+
+    void addCheckpoint(int offset, long key) {
+        if(checkpointCount == checkpointOffsets.length) {
+            int capacity = Math.max(checkpointCount << 1, 16);
+            checkpointOffsets = Arrays.copyOf(checkpointOffsets, capacity);
+            checkpointKeys = Arrays.copyOf(checkpointKeys, capacity);
+        }
+        checkpointOffsets[checkpointCount] = offset;
+        checkpointKeys[checkpointCount] = key;
+        checkpointCount++;
+    }
+
+    /**
+     * @param target uri of the link opened at <code>offset</code>, null to close the link in effect
+     */
+    void addLink(int offset, String target) {
+        if(linkCount == linkOffsets.length) {
+            int capacity = Math.max(linkCount << 1, 4);
+            linkOffsets = Arrays.copyOf(linkOffsets, capacity);
+            linkTargets = Arrays.copyOf(linkTargets, capacity);
+        }
+        linkOffsets[linkCount] = offset;
+        linkTargets[linkCount] = target;
+        linkCount++;
+    }
+
+    int getStyleCount() {
+        return styleCount;
+    }
+
+    int getStyleStart(int index) {
+        return styles[index * 3];
+    }
+
+    int getStyleEnd(int index) {
+        return styles[index * 3 + 1];
+    }
+
+    long getStyleKey(int index) {
+        int id = styles[index * 3 + 2];
+        return id < EXTENDED_ID ? id : palette.get(id - EXTENDED_ID);
+    }
+
+    int getConcealedCount() {
+        return concealedCount;
+    }
+
+    int getConcealedStart(int index) {
+        return concealed[index << 1];
+    }
+
+    int getConcealedEnd(int index) {
+        return concealed[(index << 1) + 1];
+    }
+
+    int getCheckpointCount() {
+        return checkpointCount;
+    }
+
+    int getCheckpointOffset(int index) {
+        return checkpointOffsets[index];
+    }
+
+    long getCheckpointKey(int index) {
+        return checkpointKeys[index];
+    }
+
+    int getLinkCount() {
+        return linkCount;
+    }
+
+    int getLinkOffset(int index) {
+        return linkOffsets[index];
+    }
+
+    /**
+     * @return uri of the link opened by the event, null if the event closes the link in effect
+     */
+    String getLinkTarget(int index) {
+        return linkTargets[index];
+    }
+
+    /**
+     * @return true if the link event belongs before <code>offset</code>: a link opened at an offset is opened by the
+     * sequence ending there, while a link closed at an offset is closed by the sequence starting there
+     */
+    private boolean isLinkBefore(int index, int offset) {
+        return linkOffsets[index] < offset || linkOffsets[index] == offset && linkTargets[index] != null;
+    }
+
+    /**
+     * @return index of the last checkpoint at or before <code>offset</code>, -1 if none
+     */
+    int lastCheckpointAtOrBefore(int offset) {
+        return firstCheckpointAfter(offset) - 1;
+    }
+
+    /**
+     * @return index of the first checkpoint after <code>offset</code>, or the checkpoint count if none
+     */
+    int firstCheckpointAfter(int offset) {
+        int low = 0, high = checkpointCount;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if(checkpointOffsets[mid] <= offset) low = mid + 1;
+            else high = mid;
+        }
+        return low;
+    }
+
+    /**
+     * @return a copy without the style runs with a legacy key, for editors that get styled by
+     * {@link ANSIEditorHighlighter} instead
+     */
+    ANSIRunTable withExtendedStylesOnly() {
+        ANSIRunTable table = new ANSIRunTable();
+        for(int i = 0; i < styleCount; i++) {
+            if(styles[i * 3 + 2] >= EXTENDED_ID) table.addStyle(getStyleStart(i), getStyleEnd(i), getStyleKey(i));
+        }
+        for(int i = 0; i < concealedCount; i++) {
+            table.addConcealed(getConcealedStart(i), getConcealedEnd(i));
+        }
+        table.appendLinks(this);
+        return table;
+    }
+
+    /**
+     * @param extendedOnly see {@link #withExtendedStylesOnly()}
+     * @return the style runs and links without the concealed ranges, for markup whose fold regions are already in
+     * place
+     */
+    ANSIRunTable withStylesOnly(boolean extendedOnly) {
+        ANSIRunTable table = new ANSIRunTable();
+        for(int i = 0; i < styleCount; i++) {
+            if(!extendedOnly || styles[i * 3 + 2] >= EXTENDED_ID) table.addStyle(getStyleStart(i), getStyleEnd(i), getStyleKey(i));
+        }
+        table.appendLinks(this);
+        return table;
+    }
+
+    /**
+     * @return a copy holding the link events only, for editors whose other markup is applied outside of
+     * {@link HighlightQueue}, see {@link ANSIViewportHighlighter}
+     */
+    ANSIRunTable withLinksOnly() {
+        ANSIRunTable table = new ANSIRunTable();
+        table.appendLinks(this);
+        return table;
+    }
+
+    /**
+     * @return the style runs, concealed ranges and links overlapping <code>[from, to)</code>, left unclipped. A link
+     * crossing <code>to</code> is closed where it ends so that it does not extend past its actual range.
+     */
+    ANSIRunTable slice(int from, int to) {
+        ANSIRunTable table = new ANSIRunTable();
+        for(int i = firstStyleEndingAfter(from); i < styleCount && getStyleStart(i) < to; i++) {
+            table.addStyle(getStyleStart(i), getStyleEnd(i), getStyleKey(i));
+        }
+        for(int i = firstConcealedEndingAfter(from); i < concealedCount && getConcealedStart(i) < to; i++) {
+            table.addConcealed(getConcealedStart(i), getConcealedEnd(i));
+        }
+        int i = Math.max(firstLinkAfter(from) - 1, 0);
+        for(; i < linkCount && linkOffsets[i] < to; i++) {
+            table.addLink(linkOffsets[i], linkTargets[i]);
+        }
+        if(i < linkCount && table.linkCount > 0 && table.linkTargets[table.linkCount - 1] != null) {
+            table.addLink(linkOffsets[i], null);
+        }
+        return table;
+    }
+
+    /**
+     * @return index of the first link event after <code>offset</code>, or the link count if none
+     */
+    private int firstLinkAfter(int offset) {
+        int low = 0, high = linkCount;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if(linkOffsets[mid] <= offset) low = mid + 1;
+            else high = mid;
+        }
+        return low;
+    }
+
+    /**
+     * @param window the runs parsed again over <code>[from, to)</code>, which must not fall inside a concealed range
+     * @return a copy where <code>window</code> replaces the runs of <code>[from, to)</code>, style runs crossing
+     * either bound get clipped to it
+     */
+    ANSIRunTable splice(int from, int to, ANSIRunTable window) {
+        ANSIRunTable table = new ANSIRunTable();
+        for(int i = 0; i < styleCount && getStyleStart(i) < from; i++) {
+            table.addStyle(getStyleStart(i), Math.min(getStyleEnd(i), from), getStyleKey(i));
+        }
+        for(int i = 0; i < window.styleCount; i++) {
+            table.addStyle(window.getStyleStart(i), window.getStyleEnd(i), window.getStyleKey(i));
+        }
+        for(int i = firstStyleEndingAfter(to); i < styleCount; i++) {
+            table.addStyle(Math.max(getStyleStart(i), to), getStyleEnd(i), getStyleKey(i));
+        }
+
+        for(int i = 0; i < concealedCount && getConcealedStart(i) < from; i++) {
+            table.addConcealed(getConcealedStart(i), getConcealedEnd(i));
+        }
+        for(int i = 0; i < window.concealedCount; i++) {
+            table.addConcealed(window.getConcealedStart(i), window.getConcealedEnd(i));
+        }
+        for(int i = firstConcealedEndingAfter(to); i < concealedCount; i++) {
+            table.addConcealed(getConcealedStart(i), getConcealedEnd(i));
+        }
+
+        for(int i = 0; i < checkpointCount && checkpointOffsets[i] < from; i++) {
+            table.addCheckpoint(checkpointOffsets[i], checkpointKeys[i]);
+        }
+        for(int i = 0; i < window.checkpointCount; i++) {
+            table.addCheckpoint(window.checkpointOffsets[i], window.checkpointKeys[i]);
+        }
+        for(int i = firstCheckpointAfter(to - 1); i < checkpointCount; i++) {
+            table.addCheckpoint(checkpointOffsets[i], checkpointKeys[i]);
+        }
+
+        for(int i = 0; i < linkCount && isLinkBefore(i, from); i++) {
+            table.addLink(linkOffsets[i], linkTargets[i]);
+        }
+        table.appendLinks(window);
+        for(int i = 0; i < linkCount; i++) {
+            if(!isLinkBefore(i, to)) table.addLink(linkOffsets[i], linkTargets[i]);
+        }
+        return table;
+    }
+
+    /**
+     * tables shared through {@link ANSIParseCache} must be copied before being altered
+     */
+    ANSIRunTable copy() {
+        ANSIRunTable table = new ANSIRunTable();
+        table.append(this);
+        return table;
+    }
+
+    /**
+     * writes the table in the layout read back by {@link #read(ByteBuffer)}: the palette keys, then the style
+     * triples, the concealed pairs, the checkpoints and the links, each preceded by its count. Link targets are
+     * written as their length (-1 for null) followed by their chars.
+     */
+    void write(DataOutput out) throws IOException {
+        out.writeInt(palette.size());
+        for(int i = 0; i < palette.size(); i++) {
+            out.writeLong(palette.get(i));
+        }
+        out.writeInt(styleCount);
+        for(int i = 0, n = styleCount * 3; i < n; i++) {
+            out.writeInt(styles[i]);
+        }
+        out.writeInt(concealedCount);
+        for(int i = 0, n = concealedCount << 1; i < n; i++) {
+            out.writeInt(concealed[i]);
+        }
+        out.writeInt(checkpointCount);
+        for(int i = 0; i < checkpointCount; i++) {
+            out.writeInt(checkpointOffsets[i]);
+        }
+        for(int i = 0; i < checkpointCount; i++) {
+            out.writeLong(checkpointKeys[i]);
+        }
+        out.writeInt(linkCount);
+        for(int i = 0; i < linkCount; i++) {
+            out.writeInt(linkOffsets[i]);
+        }
+        for(int i = 0; i < linkCount; i++) {
+            String target = linkTargets[i];
+            out.writeInt(target == null ? -1 : target.length());
+            if(target != null) out.writeChars(target);
+        }
+    }
+
+    /**
+     * reads a table written by {@link #write(DataOutput)}, the int tables are bulk copied out of the buffer
+     * @throws RuntimeException if the buffer does not hold a valid table
+     */
+    static ANSIRunTable read(ByteBuffer in) {
+        ANSIRunTable table = new ANSIRunTable();
+        int paletteSize = in.getInt();
+        //interning the keys in the written order gives them back their indexes
+        for(int i = 0; i < paletteSize; i++) {
+            table.palette.intern(in.getLong());
+        }
+        table.styleCount = in.getInt();
+        table.styles = readInts(in, table.styleCount * 3);
+        table.concealedCount = in.getInt();
+        table.concealed = readInts(in, table.concealedCount << 1);
+        table.checkpointCount = in.getInt();
+        table.checkpointOffsets = readInts(in, table.checkpointCount);
+        if(table.checkpointCount > in.remaining() / 8) throw new IllegalArgumentException("truncated table");
+        table.checkpointKeys = new long[table.checkpointCount];
+        in.asLongBuffer().get(table.checkpointKeys);
+        in.position(in.position() + table.checkpointCount * 8);
+        table.linkCount = in.getInt();
+        table.linkOffsets = readInts(in, table.linkCount);
+        table.linkTargets = new String[table.linkCount];
+        for(int i = 0; i < table.linkCount; i++) {
+            int length = in.getInt();
+            if(length < -1 || length > in.remaining() / 2) throw new IllegalArgumentException("truncated table");
+            if(length < 0) continue;
+            char[] chars = new char[length];
+            in.asCharBuffer().get(chars);
+            in.position(in.position() + length * 2);
+            table.linkTargets[i] = new String(chars);
+        }
+        return table;
+    }
+
+    private static int[] readInts(ByteBuffer in, int count) {
+        if(count < 0 || count > in.remaining() / 4) throw new IllegalArgumentException("truncated table");
+        int[] ints = new int[count];
+        in.asIntBuffer().get(ints);
+        in.position(in.position() + count * 4);
+        return ints;
+    }
+
+    /**
+     * drops the spare capacity, for tables kept around until their runs get applied: each style run then takes 12
+     * bytes and each concealed range 8 bytes
+     */
+    void trimToSize() {
+        if(styles.length > styleCount * 3) styles = Arrays.copyOf(styles, styleCount * 3);
+        if(concealed.length > concealedCount << 1) concealed = Arrays.copyOf(concealed, concealedCount << 1);
+        if(checkpointOffsets.length > checkpointCount) {
+            checkpointOffsets = Arrays.copyOf(checkpointOffsets, checkpointCount);
+            checkpointKeys = Arrays.copyOf(checkpointKeys, checkpointCount);
+        }
+        if(linkOffsets.length > linkCount) {
+            linkOffsets = Arrays.copyOf(linkOffsets, linkCount);
+            linkTargets = Arrays.copyOf(linkTargets, linkCount);
+        }
+    }
+
+    boolean isEmpty() {
+        return styleCount == 0 && concealedCount == 0 && linkCount == 0;
+    }
+
+    /**
+     * @return index of the first style run ending after <code>offset</code>, or the style count if none
+     */
+    int firstStyleEndingAfter(int offset) {
+        return firstEndingAfter(styles, 3, styleCount, offset);
+    }
+
+    /**
+     * @return index of the first concealed range ending after <code>offset</code>, or the concealed count if none
+     */
+    int firstConcealedEndingAfter(int offset) {
+        return firstEndingAfter(concealed, 2, concealedCount, offset);
+    }
+
+    /**
+     * both tables are sorted and non overlapping, so their ends are sorted too
+     */
+    private static int firstEndingAfter(int[] table, int stride, int count, int offset) {
+        int low = 0, high = count;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if(table[mid * stride + 1] <= offset) low = mid + 1;
+            else high = mid;
+        }
+        return low;
+    }
+
+    /**
+     * appends the runs of a table parsed past the end of this one, see follow mode under {@link ANSIHighlighter}
+     */
+    void append(ANSIRunTable other) {
+        for(int i = 0; i < other.styleCount; i++) {
+            addStyle(other.getStyleStart(i), other.getStyleEnd(i), other.getStyleKey(i));
+        }
+        for(int i = 0; i < other.concealedCount; i++) {
+            addConcealed(other.getConcealedStart(i), other.getConcealedEnd(i));
+        }
+        for(int i = 0; i < other.checkpointCount; i++) {
+            addCheckpoint(other.checkpointOffsets[i], other.checkpointKeys[i]);
+        }
+        appendLinks(other);
+    }
+
+    void appendLinks(ANSIRunTable other) {
+        for(int i = 0; i < other.linkCount; i++) {
+            addLink(other.linkOffsets[i], other.linkTargets[i]);
+        }
+    }
+
+    /**
+     * Shifts offsets to reflect a document change the same way range markers would: offsets before the change are
+     * kept, offsets after it are shifted, and offsets inside the replaced text collapse to the change offset.
+     */
+    void shift(int offset, int oldLength, int newLength) {
+        shift(styles, 3, styleCount, offset, oldLength, newLength);
+        shift(concealed, 2, concealedCount, offset, oldLength, newLength);
+        int delta = newLength - oldLength, oldEnd = offset + oldLength;
+        for(int i = firstCheckpointAfter(offset); i < checkpointCount; i++) {
+            checkpointOffsets[i] = checkpointOffsets[i] >= oldEnd ? checkpointOffsets[i] + delta : offset;
+        }
+        //link events of sequences edited away are dropped rather than collapsed, a stale one would otherwise be taken
+        //for the event of a sequence starting where an edit ends
+        int kept = firstLinkAfter(offset - 1);
+        for(int i = kept; i < linkCount; i++) {
+            int linkOffset = linkOffsets[i];
+            if(linkOffset < oldEnd && (linkOffset > offset || linkTargets[i] == null && oldLength > 0)) continue;
+            linkOffsets[kept] = linkOffset >= oldEnd ? linkOffset + delta : linkOffset;
+            linkTargets[kept++] = linkTargets[i];
+        }
+        Arrays.fill(linkTargets, kept, linkCount, null);
+        linkCount = kept;
+    }
+
+    private static void shift(int[] table, int stride, int count, int offset, int oldLength, int newLength) {
+        int delta = newLength - oldLength, oldEnd = offset + oldLength;
+        for(int i = firstEndingAfter(table, stride, count, offset) * stride, n = count * stride; i < n; i += stride) {
+            for(int j = i; j < i + 2; j++) {
+                if(table[j] >= oldEnd) table[j] += delta;
+                else if(table[j] > offset) table[j] = offset;
+            }
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package com.alayouni.ansihighlight;
+
+import com.intellij.openapi.editor.Editor;
+import com.intellij.openapi.fileEditor.FileEditorManager;
+import com.intellij.openapi.fileEditor.OpenFileDescriptor;
+import com.intellij.openapi.fileTypes.PlainTextFileType;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.Key;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.testFramework.LightVirtualFile;
+
+/**
+ * Alternative preview mode: instead of hiding each ansi sequence under a collapsed fold region, the stripped text is
+ * opened in a read-only {@link LightVirtualFile}. Caret navigation and search work on plain text, and the offset map
+ * kept in {@link ANSIStrippedText} allows jumping back to the matching offset of the source file.
+ */
+class ANSIStrippedPreview {
+    private static final Key<ANSIStrippedPreview> STRIPPED_PREVIEW_KEY = Key.create("ansi-stripped-preview");
+
+    private final VirtualFile source;
+    private final ANSIStrippedText stripped;
+
+    private ANSIStrippedPreview(VirtualFile source, ANSIStrippedText stripped) {
+        this.source = source;
+        this.stripped = stripped;
+    }
+
+    static Editor open(Project project, VirtualFile source, ANSIStrippedText stripped, int sourceOffset) {
+        LightVirtualFile file = new LightVirtualFile(source.getName() + " (stripped)", PlainTextFileType.INSTANCE, stripped.getText());
+        file.setWritable(false);
+        file.putUserData(STRIPPED_PREVIEW_KEY, new ANSIStrippedPreview(source, stripped));
+        OpenFileDescriptor descriptor = new OpenFileDescriptor(project, file, stripped.toStripped(sourceOffset));
+        return FileEditorManager.getInstance(project).openTextEditor(descriptor, true);
+    }
+
+    static boolean isStrippedPreview(VirtualFile file) {
+        return file != null && file.getUserData(STRIPPED_PREVIEW_KEY) != null;
+    }
+
+    static void jumpToSource(Project project, VirtualFile file, Editor editor) {
+        ANSIStrippedPreview preview = file.getUserData(STRIPPED_PREVIEW_KEY);
+        if(preview == null || !preview.source.isValid()) return;
+        int offset = preview.stripped.toOriginal(editor.getCaretModel().getOffset());
+        new OpenFileDescriptor(project, preview.source, offset).navigate(true);
+    }
+}
@@ -0,0 +1,86 @@
+package com.alayouni.ansihighlight;
+
+/**
+ * The text of a document with all its concealed ansi sequences removed, along with a compact bidirectional map
+ * between offsets in the original and in the stripped text. For each removed sequence only 3 ints are kept:
+ * its original start and end, and its start in the stripped text.
+ */
+class ANSIStrippedText {
+    private final String text;
+    private final int[] originalStarts, originalEnds, strippedStarts;
+
+    private ANSIStrippedText(String text, int[] originalStarts, int[] originalEnds, int[] strippedStarts) {
+        this.text = text;
+        this.originalStarts = originalStarts;
+        this.originalEnds = originalEnds;
+        this.strippedStarts = strippedStarts;
+    }
+
+    static ANSIStrippedText strip(CharSequence original, ANSIRunTable runs) {
+        int count = runs.getConcealedCount();
+        int[] originalStarts = new int[count], originalEnds = new int[count], strippedStarts = new int[count];
+        StringBuilder sb = new StringBuilder(original.length());
+        int start0 = 0;
+        for(int i = 0; i < count; i++) {
+            originalStarts[i] = runs.getConcealedStart(i);
+            originalEnds[i] = runs.getConcealedEnd(i);
+            sb.append(original, start0, originalStarts[i]);
+            strippedStarts[i] = sb.length();
+            start0 = originalEnds[i];
+        }
+        sb.append(original, start0, original.length());
+        return new ANSIStrippedText(sb.toString(), originalStarts, originalEnds, strippedStarts);
+    }
+
+    String getText() {
+        return text;
+    }
+
+    /**
+     * offsets falling inside a removed sequence map to the position it was removed from
+     */
+    int toStripped(int originalOffset) {
+        int i = lastIndexNotAfter(originalStarts, originalOffset);
+        if(i < 0) return originalOffset;
+        if(originalOffset < originalEnds[i]) return strippedStarts[i];
+        return strippedStarts[i] + originalOffset - originalEnds[i];
+    }
+
+    /**
+     * offsets at a position a sequence was removed from map to right after the sequence
+     */
+    int toOriginal(int strippedOffset) {
+        int i = lastIndexNotAfter(strippedStarts, strippedOffset);
+        if(i < 0) return strippedOffset;
+        return originalEnds[i] + strippedOffset - strippedStarts[i];
+    }
+
+    /**
+     * @return the style runs and links of <code>runs</code> translated to the stripped text, with no concealed range
+     */
+    ANSIRunTable toStrippedRuns(ANSIRunTable runs) {
+        ANSIRunTable stripped = new ANSIRunTable();
+        for(int i = 0; i < runs.getStyleCount(); i++) {
+            int start = toStripped(runs.getStyleStart(i)), end = toStripped(runs.getStyleEnd(i));
+            if(start < end) stripped.addStyle(start, end, runs.getStyleKey(i));
+        }
+        for(int i = 0; i < runs.getLinkCount(); i++) {
+            stripped.addLink(toStripped(runs.getLinkOffset(i)), runs.getLinkTarget(i));
+        }
+        return stripped;
+    }
+
+    /**
+     * for the last of equal values (consecutive sequences removed from the same stripped offset) the last index is
+     * returned
+     */
+    private static int lastIndexNotAfter(int[] sorted, int value) {
+        int low = 0, high = sorted.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if(sorted[mid] <= value) low = mid + 1;
+            else high = mid;
+        }
+        return low - 1;
+    }
+}
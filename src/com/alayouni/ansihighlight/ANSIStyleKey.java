@@ -0,0 +1,83 @@
+package com.alayouni.ansihighlight;
+
+/**
+ * Layout of the packed <code>long</code> style keys computed by {@link ANSIParser}, 0 meaning no attributes:
+ * <ul>
+ *     <li>bits 0-10: the legacy id indexing <code>ANSIHighlighter#ALL_ATTRIBUTES</code>, that is bold, italic,
+ *     underline, and the 8 standard foreground/background colors</li>
+ *     <li>bit 11: faint, bit 12: inverse, bit 13: strikethrough</li>
+ *     <li>bits 14-38 (25 bits): extended foreground color, see below</li>
+ *     <li>bits 39-63 (25 bits): extended background color</li>
+ * </ul>
+ * An extended color is 0 when not set, <code>index + 1</code> for colors of the 256 colors palette (bright colors
+ * being indexes 8 to 15), or {@link #TRUE_COLOR} combined with 24 rgb bits. A color is set either in its legacy field
+ * or in its extended field, never both, and palette indexes 0 to 7 always go to the legacy field so that keys of the
+ * common cases remain legacy ids.
+ */
+class ANSIStyleKey {
+    static final long BOLD = 1;
+    static final long ITALIC = 1 << 1;
+    static final long UNDERLINE = 1 << 2;
+    static final long FAINT = 1 << 11;
+    static final long INVERSE = 1 << 12;
+    static final long STRIKETHROUGH = 1 << 13;
+
+    static final long LEGACY_MASK = 0x7FF;
+
+    static final int FOREGROUND_SHIFT = 3;
+    static final int BACKGROUND_SHIFT = 7;
+    static final long LEGACY_COLOR_MASK = 0xF;
+
+    static final int EXTENDED_FOREGROUND_SHIFT = 14;
+    static final int EXTENDED_BACKGROUND_SHIFT = 39;
+    static final long EXTENDED_COLOR_MASK = 0x1FFFFFF;
+
+    static final int TRUE_COLOR = 1 << 24;
+
+    static final long FOREGROUND_MASK = (LEGACY_COLOR_MASK << FOREGROUND_SHIFT) | (EXTENDED_COLOR_MASK << EXTENDED_FOREGROUND_SHIFT);
+    static final long BACKGROUND_MASK = (LEGACY_COLOR_MASK << BACKGROUND_SHIFT) | (EXTENDED_COLOR_MASK << EXTENDED_BACKGROUND_SHIFT);
+
+    private ANSIStyleKey() {}
+
+    static boolean isLegacy(long key) {
+        return (key & ~LEGACY_MASK) == 0;
+    }
+
+    /**
+     * @param paletteIndex index in the 256 colors palette
+     */
+    static long withForegroundIndex(long key, int paletteIndex) {
+        key &= ~FOREGROUND_MASK;
+        if(paletteIndex < 8) return key | ((long) (paletteIndex + 1) << FOREGROUND_SHIFT);
+        return key | ((long) (paletteIndex + 1) << EXTENDED_FOREGROUND_SHIFT);
+    }
+
+    static long withBackgroundIndex(long key, int paletteIndex) {
+        key &= ~BACKGROUND_MASK;
+        if(paletteIndex < 8) return key | ((long) (paletteIndex + 1) << BACKGROUND_SHIFT);
+        return key | ((long) (paletteIndex + 1) << EXTENDED_BACKGROUND_SHIFT);
+    }
+
+    static long withForegroundRGB(long key, int rgb) {
+        return (key & ~FOREGROUND_MASK) | ((long) (TRUE_COLOR | (rgb & 0xFFFFFF)) << EXTENDED_FOREGROUND_SHIFT);
+    }
+
+    static long withBackgroundRGB(long key, int rgb) {
+        return (key & ~BACKGROUND_MASK) | ((long) (TRUE_COLOR | (rgb & 0xFFFFFF)) << EXTENDED_BACKGROUND_SHIFT);
+    }
+
+    /**
+     * @return the foreground color as an extended color value (see class doc), 0 if not set
+     */
+    static int getForeground(long key) {
+        int legacy = (int) ((key >>> FOREGROUND_SHIFT) & LEGACY_COLOR_MASK);
+        if(legacy != 0) return legacy;
+        return (int) ((key >>> EXTENDED_FOREGROUND_SHIFT) & EXTENDED_COLOR_MASK);
+    }
+
+    static int getBackground(long key) {
+        int legacy = (int) ((key >>> BACKGROUND_SHIFT) & LEGACY_COLOR_MASK);
+        if(legacy != 0) return legacy;
+        return (int) ((key >>> EXTENDED_BACKGROUND_SHIFT) & EXTENDED_COLOR_MASK);
+    }
+}
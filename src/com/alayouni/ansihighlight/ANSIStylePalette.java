@@ -0,0 +1,60 @@
+package com.alayouni.ansihighlight;
+
+import java.util.Arrays;
+
+/**
+ * Interns the distinct style keys (see {@link ANSIStyleKey}) that do not fit in a legacy id, so that they can be
+ * referenced from int tables by index. Backed by an open addressing hash table of primitives, interning an already
+ * known key allocates nothing.
+ */
+class ANSIStylePalette {
+    private static final int INITIAL_CAPACITY = 16;
+
+    private long[] keys = new long[INITIAL_CAPACITY];
+    private int size = 0;
+
+    //hash slots holding index + 1 in keys, 0 for an empty slot
+    private int[] slots = new int[INITIAL_CAPACITY * 2];
+
+    int intern(long key) {
+        int mask = slots.length - 1;
+        for(int slot = hash(key) & mask; ; slot = (slot + 1) & mask) {
+            int index = slots[slot] - 1;
+            if(index == -1) {
+                slots[slot] = add(key) + 1;
+                if(size * 2 > slots.length) rehash();
+                return size - 1;
+            }
+            if(keys[index] == key) return index;
+        }
+    }
+
+    long get(int index) {
+        return keys[index];
+    }
+
+    int size() {
+        return size;
+    }
+
+    private int add(long key) {
+        if(size == keys.length) keys = Arrays.copyOf(keys, size << 1);
+        keys[size] = key;
+        return size++;
+    }
+
+    private void rehash() {
+        slots = new int[slots.length << 1];
+        int mask = slots.length - 1;
+        for(int index = 0; index < size; index++) {
+            int slot = hash(keys[index]) & mask;
+            while (slots[slot] != 0) slot = (slot + 1) & mask;
+            slots[slot] = index + 1;
+        }
+    }
+
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
@@ -0,0 +1,39 @@
+package com.alayouni.ansihighlight;
+
+import com.intellij.lexer.Lexer;
+import com.intellij.openapi.editor.HighlighterColors;
+import com.intellij.openapi.editor.colors.TextAttributesKey;
+import com.intellij.openapi.fileTypes.SyntaxHighlighterBase;
+import com.intellij.psi.tree.IElementType;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Maps {@link ANSILexer} text tokens to a {@link TextAttributesKey} per attributes id, falling back to plain text.
+ * Colors schemes know nothing of these keys, {@link ANSIEditorHighlighter} resolves the tokens to the attributes
+ * cached under ANSIHighlighter for the current scheme instead.
+ */
+class ANSISyntaxHighlighter extends SyntaxHighlighterBase {
+    private static final TextAttributesKey[] ATTRIBUTES_KEYS = new TextAttributesKey[ANSIHighlighter.ATTRIBUTES_COUNT];
+
+    @NotNull
+    @Override
+    public Lexer getHighlightingLexer() {
+        return new ANSILexer();
+    }
+
+    @NotNull
+    @Override
+    public TextAttributesKey[] getTokenHighlights(IElementType tokenType) {
+        if(!(tokenType instanceof ANSITokenTypes.ANSITextElementType)) return EMPTY;
+        int id = ((ANSITokenTypes.ANSITextElementType) tokenType).id;
+        if(id == 0) return EMPTY;
+        return pack(getAttributesKey(id));
+    }
+
+    private static synchronized TextAttributesKey getAttributesKey(int id) {
+        if(ATTRIBUTES_KEYS[id] == null) {
+            ATTRIBUTES_KEYS[id] = TextAttributesKey.createTextAttributesKey("ANSI_ATTRIBUTES_" + id, HighlighterColors.TEXT);
+        }
+        return ATTRIBUTES_KEYS[id];
+    }
+}
@@ -0,0 +1,129 @@
+package com.alayouni.ansihighlight;
+
+import com.intellij.openapi.editor.markup.EffectType;
+import com.intellij.openapi.editor.markup.TextAttributes;
+
+import java.awt.*;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Interned TextAttributes of the style keys that do not fit in a legacy id (see {@link ANSIStyleKey}), such as
+ * 256 colors, true colors, faint, inverse or strikethrough, so each distinct style gets a single instance no matter
+ * how many runs it styles.
+ * <p>
+ *     Unlike the pre-loaded legacy ids, the number of such styles is unbounded (think of true color gradients), so
+ *     the cache is split into two generations: lookups hit the young one first and promote entries found in the old
+ *     one, and once the young generation is full the old one gets dropped. At most {@link #MAX_SIZE} instances are
+ *     retained, while the styles in use keep surviving. Evicted instances remain valid for the highlighters already
+ *     holding them.
+ * </p>
+ * <p>
+ *     Instances depend on the colors scheme, the generations of the last few palettes are kept around the same way
+ *     {@link ANSIHighlighter} keeps the legacy ids' attributes, so switching back to a scheme does not start over.
+ * </p>
+ */
+class ANSITextAttributesCache {
+    private static final int MAX_SIZE = Integer.getInteger("ansi.highlighter.attributes.cache.size", 4096);
+
+    private static volatile ConcurrentHashMap<Long, TextAttributes> young = new ConcurrentHashMap<>();
+    private static volatile ConcurrentHashMap<Long, TextAttributes> old = new ConcurrentHashMap<>();
+
+    private static final int CACHED_PALETTES_COUNT = 8;
+
+    //palette of the current generations, see ANSIColor.getExtendedPalette()
+    private static List<Color> palette;
+
+    /**
+     * generations of the palettes switched away from, least recently used first
+     */
+    private static final Map<List<Color>, Generations> PALETTES = new LinkedHashMap<List<Color>, Generations>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<List<Color>, Generations> eldest) {
+            return size() > CACHED_PALETTES_COUNT;
+        }
+    };
+
+    private static final class Generations {
+        final ConcurrentHashMap<Long, TextAttributes> young, old;
+
+        Generations(ConcurrentHashMap<Long, TextAttributes> young, ConcurrentHashMap<Long, TextAttributes> old) {
+            this.young = young;
+            this.old = old;
+        }
+    }
+
+    private ANSITextAttributesCache() {}
+
+    static TextAttributes get(long key) {
+        ConcurrentHashMap<Long, TextAttributes> young = ANSITextAttributesCache.young;
+        TextAttributes attributes = young.get(key);
+        if(attributes != null) return attributes;
+
+        attributes = old.get(key);
+        if(attributes == null) attributes = createTextAttributes(key);
+        TextAttributes interned = young.putIfAbsent(key, attributes);
+        if(interned != null) return interned;
+        if(young.size() >= MAX_SIZE / 2) rotate(young);
+        return attributes;
+    }
+
+    /**
+     * sets aside the instances of the current palette and restores those of <code>palette</code>, if still kept
+     * @param palette see {@link ANSIColor#getExtendedPalette()}
+     */
+    static synchronized void switchPalette(List<Color> palette) {
+        if(palette.equals(ANSITextAttributesCache.palette)) return;
+        if(ANSITextAttributesCache.palette != null) {
+            PALETTES.put(ANSITextAttributesCache.palette, new Generations(young, old));
+        }
+        ANSITextAttributesCache.palette = palette;
+        Generations kept = PALETTES.remove(palette);
+        old = kept != null ? kept.old : new ConcurrentHashMap<>();
+        young = kept != null ? kept.young : new ConcurrentHashMap<>();
+    }
+
+    private static synchronized void rotate(ConcurrentHashMap<Long, TextAttributes> full) {
+        //another thread may have rotated already
+        if(young != full) return;
+        old = full;
+        young = new ConcurrentHashMap<>();
+    }
+
+    private static TextAttributes createTextAttributes(long key) {
+        TextAttributes attributes = new TextAttributes();
+        Color foreground = ANSIColor.getColor(ANSIStyleKey.getForeground(key), true);
+        Color background = ANSIColor.getColor(ANSIStyleKey.getBackground(key), false);
+
+        if((key & ANSIStyleKey.FAINT) != 0) {
+            //no faint font is available, blend the foreground halfway into the background instead
+            Color fg = foreground != null ? foreground : ANSIColor.colorsScheme.getDefaultForeground();
+            Color bg = background != null ? background : ANSIColor.colorsScheme.getDefaultBackground();
+            foreground = new Color((fg.getRed() + bg.getRed()) / 2, (fg.getGreen() + bg.getGreen()) / 2, (fg.getBlue() + bg.getBlue()) / 2);
+        }
+        if((key & ANSIStyleKey.INVERSE) != 0) {
+            Color fg = foreground != null ? foreground : ANSIColor.colorsScheme.getDefaultForeground();
+            foreground = background != null ? background : ANSIColor.colorsScheme.getDefaultBackground();
+            background = fg;
+        }
+        attributes.setForegroundColor(foreground);
+        attributes.setBackgroundColor(background);
+
+        int fontType = Font.PLAIN;
+        if((key & ANSIStyleKey.BOLD) != 0) fontType |= Font.BOLD;
+        if((key & ANSIStyleKey.ITALIC) != 0) fontType |= Font.ITALIC;
+        attributes.setFontType(fontType);
+
+        //a single effect can be set, underline wins over strikethrough
+        if((key & ANSIStyleKey.UNDERLINE) != 0) {
+            attributes.setEffectType((fontType & Font.BOLD) != 0 ? EffectType.BOLD_LINE_UNDERSCORE : EffectType.LINE_UNDERSCORE);
+            attributes.setEffectColor(foreground);
+        } else if((key & ANSIStyleKey.STRIKETHROUGH) != 0) {
+            attributes.setEffectType(EffectType.STRIKEOUT);
+            attributes.setEffectColor(foreground);
+        }
+        return attributes;
+    }
+}
@@ -0,0 +1,32 @@
+package com.alayouni.ansihighlight;
+
+import com.intellij.lang.Language;
+import com.intellij.psi.tree.IElementType;
+
+/**
+ * Token types produced by {@link ANSILexer}: one for ansi sequences, and one per legacy id (see {@link ANSIStyleKey})
+ * for the text they style. Text token types are created lazily since only a few of the 1096 ids are used in practice.
+ * Text with a style that does not fit a legacy id is typed {@link #EXTENDED_TEXT} and gets styled by range
+ * highlighters instead, since the number of such styles is unbounded.
+ */
+class ANSITokenTypes {
+    static final IElementType SEQUENCE = new IElementType("ANSI_SEQUENCE", Language.ANY);
+
+    static final IElementType EXTENDED_TEXT = new IElementType("ANSI_EXTENDED_TEXT", Language.ANY);
+
+    private static final ANSITextElementType[] TEXT = new ANSITextElementType[ANSIHighlighter.ATTRIBUTES_COUNT];
+
+    static synchronized IElementType text(int id) {
+        if(TEXT[id] == null) TEXT[id] = new ANSITextElementType(id);
+        return TEXT[id];
+    }
+
+    static class ANSITextElementType extends IElementType {
+        final int id;
+
+        private ANSITextElementType(int id) {
+            super("ANSI_TEXT_" + id, Language.ANY);
+            this.id = id;
+        }
+    }
+}
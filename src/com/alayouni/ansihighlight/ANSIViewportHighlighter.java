@@ -0,0 +1,228 @@
+package com.alayouni.ansihighlight;
+
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.editor.Editor;
+import com.intellij.openapi.editor.FoldRegion;
+import com.intellij.openapi.editor.event.DocumentEvent;
+import com.intellij.openapi.editor.event.VisibleAreaEvent;
+import com.intellij.openapi.editor.event.VisibleAreaListener;
+import com.intellij.openapi.editor.ex.FoldingModelEx;
+import com.intellij.openapi.editor.markup.MarkupModel;
+import com.intellij.openapi.editor.markup.RangeHighlighter;
+import com.intellij.openapi.editor.markup.TextAttributes;
+import com.intellij.openapi.util.Key;
+
+import java.awt.*;
+
+/**
+ * Lazy alternative to {@link HighlightQueue} for documents with a large number of ansi sequences: the parsed
+ * {@link ANSIRunTable} is kept off-model, and highlighters and fold regions are only materialized for the visible
+ * area plus a margin. Markup that scrolls far out of view is released, so the markup held by the editor stays flat
+ * regardless of the file size. Hyperlinks being few, they are still applied through {@link HighlightQueue}.
+ */
+class ANSIViewportHighlighter implements VisibleAreaListener {
+    private static final Key<ANSIViewportHighlighter> VIEWPORT_HIGHLIGHTER_KEY = Key.create("ansi-viewport-highlighter");
+
+    /**
+     * run tables with fewer entries are applied upfront through {@link HighlightQueue}
+     */
+    static final int LAZY_MODE_THRESHOLD = 10000;
+
+    /**
+     * lines materialized above and below the visible area, markup is rebuilt once the visible area gets closer than
+     * half this margin to the edges of the materialized range
+     */
+    private static final int MARGIN_LINE_COUNT = 200;
+
+    private final Editor editor;
+    private ANSIRunTable runs;
+    private final TextAttributes[] allAttributes;
+
+    //materialized markup, highlighters[i] matches style run styleLow + i and foldRegions[i] concealed range concealedLow + i
+    private int fromOffset = 0, toOffset = 0;
+    private int styleLow = 0, concealedLow = 0;
+    private RangeHighlighter[] highlighters = new RangeHighlighter[0];
+    private FoldRegion[] foldRegions = new FoldRegion[0];
+
+    private ANSIViewportHighlighter(Editor editor, ANSIRunTable runs, TextAttributes[] allAttributes) {
+        this.editor = editor;
+        this.runs = runs;
+        this.allAttributes = allAttributes;
+    }
+
+    static boolean isLazyModeWorthwhile(ANSIRunTable runs) {
+        return runs.getStyleCount() + runs.getConcealedCount() > LAZY_MODE_THRESHOLD;
+    }
+
+    static ANSIViewportHighlighter getInstance(Editor editor) {
+        return editor.getUserData(VIEWPORT_HIGHLIGHTER_KEY);
+    }
+
+    static void install(Editor editor, ANSIRunTable runs, TextAttributes[] allAttributes) {
+        ApplicationManager.getApplication().assertIsDispatchThread();
+        ANSIViewportHighlighter highlighter = new ANSIViewportHighlighter(editor, runs, allAttributes);
+        //fold regions still queued for removal would reject the same regions materialized again
+        ANSIEditorMarkup.getInstance(editor).flushFoldRegionRemovals(editor);
+        editor.putUserData(VIEWPORT_HIGHLIGHTER_KEY, highlighter);
+        editor.getScrollingModel().addVisibleAreaListener(highlighter);
+        highlighter.update(true);
+        queueLinks(editor, runs, allAttributes);
+    }
+
+    private static void queueLinks(Editor editor, ANSIRunTable runs, TextAttributes[] allAttributes) {
+        if(runs.getLinkCount() == 0) return;
+        HighlightQueue.getInstance().addTask(new HighlightTaskData(editor, runs.withLinksOnly(), allAttributes));
+    }
+
+    /**
+     * stops tracking the visible area, materialized markup is handed over to {@link ANSIEditorMarkup} for the caller
+     * to clear
+     */
+    static void uninstall(Editor editor) {
+        ANSIViewportHighlighter highlighter = getInstance(editor);
+        if(highlighter == null) return;
+        editor.getScrollingModel().removeVisibleAreaListener(highlighter);
+        editor.putUserData(VIEWPORT_HIGHLIGHTER_KEY, null);
+        ANSIEditorMarkup.getInstance(editor).adopt(highlighter.highlighters, highlighter.foldRegions);
+    }
+
+    /**
+     * appends runs parsed in follow mode
+     */
+    void append(ANSIRunTable tail) {
+        runs.append(tail);
+        update(true);
+        queueLinks(editor, tail, allAttributes);
+    }
+
+    /**
+     * replaces the table, e.g. once repaired after an edit, the materialized markup is rebuilt from the new one.
+     * Hyperlinks are left to the caller.
+     */
+    void reset(ANSIRunTable runs) {
+        //indexes of the materialized markup no longer match the new table's
+        highlighters = materializeHighlighters(0, 0);
+        foldRegions = materializeFoldRegions(0, 0);
+        styleLow = concealedLow = 0;
+        this.runs = runs;
+        update(true);
+    }
+
+    /**
+     * swaps the attributes of the materialized highlighters of extended style keys, see
+     * {@link ANSIHighlighter#refreshTextAttributes}
+     */
+    void refreshTextAttributes() {
+        for(RangeHighlighter highlighter : highlighters) {
+            if(highlighter != null && highlighter.isValid()) ANSIEditorMarkup.refreshTextAttributes(highlighter);
+        }
+    }
+
+    /**
+     * @return the number of highlighters and fold regions currently materialized
+     */
+    int getMaterializedCount() {
+        return highlighters.length + foldRegions.length;
+    }
+
+    void documentChanged(DocumentEvent e) {
+        //materialized markup is already shifted by the editor, the off-model table must follow
+        runs.shift(e.getOffset(), e.getOldLength(), e.getNewLength());
+    }
+
+    @Override
+    public void visibleAreaChanged(VisibleAreaEvent e) {
+        update(false);
+    }
+
+    private void update(boolean force) {
+        if(editor.isDisposed()) return;
+        Rectangle area = editor.getScrollingModel().getVisibleArea();
+        Document document = editor.getDocument();
+        if(document.getLineCount() == 0) return;
+        int topLine = editor.xyToLogicalPosition(new Point(area.x, area.y)).line;
+        int bottomLine = editor.xyToLogicalPosition(new Point(area.x, area.y + area.height)).line;
+
+        if(!force && fromOffset <= lineStartOffset(document, topLine - MARGIN_LINE_COUNT / 2) &&
+                toOffset >= lineEndOffset(document, bottomLine + MARGIN_LINE_COUNT / 2)) return;
+
+        materialize(lineStartOffset(document, topLine - MARGIN_LINE_COUNT), lineEndOffset(document, bottomLine + MARGIN_LINE_COUNT));
+    }
+
+    private void materialize(int from, int to) {
+        int newStyleLow = runs.firstStyleEndingAfter(from), newStyleHigh = runs.firstStyleEndingAfter(to);
+        if(newStyleHigh < runs.getStyleCount() && runs.getStyleStart(newStyleHigh) < to) newStyleHigh++;
+        int newConcealedLow = runs.firstConcealedEndingAfter(from), newConcealedHigh = runs.firstConcealedEndingAfter(to);
+        if(newConcealedHigh < runs.getConcealedCount() && runs.getConcealedStart(newConcealedHigh) < to) newConcealedHigh++;
+
+        ANSIHighlighterMetrics metrics = ANSIHighlighterMetrics.getInstance();
+        long start = System.nanoTime();
+        highlighters = materializeHighlighters(newStyleLow, newStyleHigh);
+        styleLow = newStyleLow;
+        long highlighted = System.nanoTime();
+        metrics.highlightsApplied(newStyleHigh - newStyleLow, highlighted - start);
+        foldRegions = materializeFoldRegions(newConcealedLow, newConcealedHigh);
+        concealedLow = newConcealedLow;
+        metrics.foldRegionsApplied(newConcealedHigh - newConcealedLow, System.nanoTime() - highlighted);
+        fromOffset = from;
+        toOffset = to;
+    }
+
+    private RangeHighlighter[] materializeHighlighters(int low, int high) {
+        MarkupModel markupModel = editor.getMarkupModel();
+        RangeHighlighter[] materialized = new RangeHighlighter[high - low];
+        for(int i = 0; i < highlighters.length; i++) {
+            int index = styleLow + i;
+            if(index >= low && index < high) {
+                materialized[index - low] = highlighters[i];
+            } else if(highlighters[i] != null && highlighters[i].isValid()) {
+                markupModel.removeHighlighter(highlighters[i]);
+            }
+        }
+        int length = editor.getDocument().getTextLength();
+        for(int i = low; i < high; i++) {
+            if(materialized[i - low] != null) continue;
+            int start = runs.getStyleStart(i), end = runs.getStyleEnd(i);
+            if(start >= end || end > length) continue;
+            materialized[i - low] = HighlightRangeData.apply(markupModel, start, end, runs.getStyleKey(i), allAttributes);
+        }
+        return materialized;
+    }
+
+    private FoldRegion[] materializeFoldRegions(int low, int high) {
+        FoldRegion[] materialized = new FoldRegion[high - low];
+        if(!(editor.getFoldingModel() instanceof FoldingModelEx)) return materialized;
+        FoldingModelEx fm = (FoldingModelEx) editor.getFoldingModel();
+        fm.runBatchFoldingOperation(() -> {
+            for(int i = 0; i < foldRegions.length; i++) {
+                int index = concealedLow + i;
+                if(index >= low && index < high) {
+                    materialized[index - low] = foldRegions[i];
+                } else if(foldRegions[i] != null && foldRegions[i].isValid()) {
+                    fm.removeFoldRegion(foldRegions[i]);
+                }
+            }
+            int length = editor.getDocument().getTextLength();
+            FoldRegion region;
+            for(int i = low; i < high; i++) {
+                if(materialized[i - low] != null) continue;
+                int start = runs.getConcealedStart(i), end = runs.getConcealedEnd(i);
+                if(start >= end || end > length) continue;
+                region = fm.createFoldRegion(start, end, "", null, true);
+                if(region == null || !fm.addFoldRegion(region)) continue;
+                region.setExpanded(false);
+                materialized[i - low] = region;
+            }
+        }, true);
+        return materialized;
+    }
+
+    private static int lineStartOffset(Document document, int line) {
+        return document.getLineStartOffset(Math.max(0, Math.min(line, document.getLineCount() - 1)));
+    }
+
+    private static int lineEndOffset(Document document, int line) {
+        return document.getLineEndOffset(Math.max(0, Math.min(line, document.getLineCount() - 1)));
+    }
+}
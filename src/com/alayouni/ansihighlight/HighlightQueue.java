@@ -3,44 +3,87 @@ package com.alayouni.ansihighlight;
 import com.intellij.openapi.application.Application;
 import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.editor.Editor;
-import com.intellij.openapi.editor.FoldRegion;
-import com.intellij.openapi.util.Key;
+import com.intellij.openapi.editor.markup.TextAttributes;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 /**
+ * Applies queued markup on the EDT in time-budgeted slices scheduled through <code>invokeLater</code>, so neither the
+ * EDT nor the background threads that queue tasks ever block on each other. A single queue is shared by all the
+ * projects, tasks get served in turns (round-robin) so that every open ansi aware editor gets a fair share of each
+ * slice.
+ *
  * Created by alayouni on 6/5/17.
  */
 class HighlightQueue {
-    private static Key<HighlightTaskData> EDITOR_HIGHLIGHT_TASK_DATA = Key.create("editor-highlight-task-data");
+    private static final HighlightQueue INSTANCE = new HighlightQueue();
+
+    /**
+     * wall-clock time a slice may spend applying markup before yielding the EDT back to other events, can be
+     * overridden in milliseconds through the <code>ansi.highlighter.slice.budget.ms</code> system property
+     */
+    private static final long SLICE_BUDGET = TimeUnit.MILLISECONDS.toNanos(Integer.getInteger("ansi.highlighter.slice.budget.ms", 6));
 
     private HighlightTaskData current;
-    private int totalEstimatedWork = 0, doneWork = 0;
+    private int size = 0;
+    private boolean sliceScheduled = false;
 
     private Application application = ApplicationManager.getApplication();
 
+    private HighlightQueue() {}
+
+    static HighlightQueue getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * removes all the tasks queued for the editor, follow mode may queue several tasks per editor. Markup removals
+     * are left to complete.
+     */
     public void removeEditorHighlightTaskIfQueed(Editor editor) {
         application.assertIsDispatchThread();
-        HighlightTaskData task = editor.getUserData(EDITOR_HIGHLIGHT_TASK_DATA);
-        if(task != null) removeTask(task);
+        if(current == null) return;
+        List<HighlightTaskData> editorTasks = new ArrayList<>();
+        HighlightTaskData task = current;
+        do {
+            if(task.getEditor() == editor && task.isCancelable()) editorTasks.add(task);
+            task = task.next();
+        } while(task != current);
+        for(HighlightTaskData editorTask : editorTasks) {
+            removeTask(editorTask);
+        }
+    }
+
+    public boolean hasEditorHighlightTask(Editor editor) {
+        application.assertIsDispatchThread();
+        if(current == null) return false;
+        HighlightTaskData task = current;
+        do {
+            if(task.getEditor() == editor && task.isCancelable()) return true;
+            task = task.next();
+        } while(task != current);
+        return false;
     }
 
     public void removeTask(HighlightTaskData task) {
         application.assertIsDispatchThread();
-        task.getEditor().putUserData(EDITOR_HIGHLIGHT_TASK_DATA, null);
-        doneWork -= task.getFoldRegionsStart();
-        totalEstimatedWork -= task.getFoldRegions().size();
         if(task == current) current = task.next() == task ? null : task.next();
+        size--;
         if(task.next() != task) {
             task.next().setPrevious(task.previous());
             task.previous().setNext(task.next());
         }
     }
 
-    public void addNewTask(Editor editor, List<HighlightRangeData> highlights, List<FoldRegion> foldRegions) {
+    public void addNewTask(Editor editor, ANSIRunTable runs, TextAttributes[] allAttributes) {
+        addTask(new HighlightTaskData(editor, runs, allAttributes));
+    }
+
+    void addTask(HighlightTaskData task) {
         application.assertIsDispatchThread();
-        HighlightTaskData task = new HighlightTaskData(editor, highlights, foldRegions);
-        editor.putUserData(EDITOR_HIGHLIGHT_TASK_DATA, task);
+        size++;
         if(current == null) {
             current = task;
             task.setNext(task);
@@ -51,7 +94,7 @@ class HighlightQueue {
             current.setNext(task);
             task.setPrevious(current);
         }
-        totalEstimatedWork += task.getFoldRegions().size();
+        scheduleSlice();
     }
 
     public HighlightTaskData next() {
@@ -59,23 +102,41 @@ class HighlightQueue {
         return current == null ? null : (current = current.next());
     }
 
-    public void taskProcessedUpdateQueue(HighlightTaskData task) {
-        application.assertIsDispatchThread();
-        //estimated work must be calculated before call to task.taskProcessedUpdateData() since the call will update task.foldRegionsStart
-        int estimatedWork = task.getFoldRegionsEnd() - task.getFoldRegionsStart();
-        if(task.taskProcessedUpdateData()) {
-            removeTask(task);
-        } else {
-            doneWork += estimatedWork;
-        }
+    public boolean isEmpty() {
+        return current == null;
     }
 
+    public int size() {
+        return size;
+    }
 
-    double getProgressFraction() {
-        return doneWork/ (double)totalEstimatedWork;
+    private void scheduleSlice() {
+        if(sliceScheduled || current == null) return;
+        sliceScheduled = true;
+        application.invokeLater(this::runSlice);
     }
 
-    public boolean isEmpty() {
-        return current == null;
+    /**
+     * gives each queued task a turn after the other until the budget runs out, the clock is checked after every turn
+     * so the number of operations per slice adapts to how expensive they are on this machine
+     */
+    private void runSlice() {
+        sliceScheduled = false;
+        long start = System.nanoTime(), deadline = start + SLICE_BUDGET;
+        int turns = 0;
+        while (current != null && System.nanoTime() < deadline) {
+            turns++;
+            HighlightTaskData task = next();
+            if(task.getEditor().isDisposed()) {
+                removeTask(task);
+                continue;
+            }
+            //the removal holding it back is queued as well, so the loop can't spin on waiting tasks only
+            if(task.isWaiting()) continue;
+            task.run();
+            if(task.taskProcessedUpdateData()) removeTask(task);
+        }
+        ANSIHighlighterMetrics.getInstance().sliceRan(System.nanoTime() - start, turns, size);
+        scheduleSlice();
     }
 }
@@ -3,24 +3,33 @@ package com.alayouni.ansihighlight;
 import com.intellij.openapi.editor.markup.HighlighterLayer;
 import com.intellij.openapi.editor.markup.HighlighterTargetArea;
 import com.intellij.openapi.editor.markup.MarkupModel;
+import com.intellij.openapi.editor.markup.RangeHighlighter;
 import com.intellij.openapi.editor.markup.TextAttributes;
+import com.intellij.openapi.util.Key;
 
 
 /**
+ * Applies style runs kept in an {@link ANSIRunTable}, runs are passed as primitives so that no object gets created per
+ * run besides the highlighter itself.
+ *
  * Created by alayouni on 6/5/17.
  */
-public class HighlightRangeData {
-    int start, end, id;
+class HighlightRangeData {
+    /**
+     * style key of highlighters using interned attributes, which get replaced on colors scheme changes while the
+     * pre-loaded attributes of legacy ids are updated in place, see {@link ANSIHighlighter#refreshTextAttributes}
+     */
+    static final Key<Long> STYLE_KEY = Key.create("ansi-style-key");
 
-    public HighlightRangeData(){}
+    private HighlightRangeData() {}
 
-    public HighlightRangeData(int start, int end, int id) {
-        this.start = start;
-        this.end = end;
-        this.id = id;
-    }
-
-    public void apply(MarkupModel markupModel, TextAttributes[] allAttributes) {
-        markupModel.addRangeHighlighter(start, end, HighlighterLayer.ADDITIONAL_SYNTAX, allAttributes[id], HighlighterTargetArea.EXACT_RANGE);
+    static RangeHighlighter apply(MarkupModel markupModel, int start, int end, long key, TextAttributes[] allAttributes) {
+        if(ANSIStyleKey.isLegacy(key)) {
+            return markupModel.addRangeHighlighter(start, end, HighlighterLayer.ADDITIONAL_SYNTAX, allAttributes[(int) key], HighlighterTargetArea.EXACT_RANGE);
+        }
+        RangeHighlighter highlighter = markupModel.addRangeHighlighter(start, end, HighlighterLayer.ADDITIONAL_SYNTAX,
+                ANSITextAttributesCache.get(key), HighlighterTargetArea.EXACT_RANGE);
+        highlighter.putUserData(STYLE_KEY, key);
+        return highlighter;
     }
 }
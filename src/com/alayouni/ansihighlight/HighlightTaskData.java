@@ -1,31 +1,42 @@
 package com.alayouni.ansihighlight;
 
+import com.intellij.execution.impl.EditorHyperlinkSupport;
+import com.intellij.ide.browsers.OpenUrlHyperlinkInfo;
 import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.editor.Editor;
 import com.intellij.openapi.editor.FoldRegion;
 import com.intellij.openapi.editor.FoldingModel;
+import com.intellij.openapi.editor.colors.CodeInsightColors;
+import com.intellij.openapi.editor.ex.FoldingModelEx;
 import com.intellij.openapi.editor.markup.MarkupModel;
 import com.intellij.openapi.editor.markup.TextAttributes;
-
-import java.util.List;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.Key;
 
 /**
  * Created by alayouni on 6/5/17.
  */
 class HighlightTaskData {
-    static final int MAX_HIGHLIGHT_OPERATION_COUNT_PER_UI_THREAD_CALL = 100;
+    /**
+     * operations applied per turn, kept small since {@link HighlightQueue} checks its time budget between turns
+     */
+    static final int MAX_HIGHLIGHT_OPERATION_COUNT_PER_TURN = 32;
+
+    static final int MAX_FOLD_OPERATION_COUNT_PER_TURN = 32;
 
-    static final int MAX_FOLD_OPERATION_COUNT_PER_UI_THREAD_CALL = 100;
+    static final int MAX_LINK_OPERATION_COUNT_PER_TURN = 32;
+
+    private static final Key<EditorHyperlinkSupport> HYPERLINK_SUPPORT_KEY = Key.create("ansi-hyperlink-support");
 
     private final Editor editor;
-    private final List<HighlightRangeData> highlights;
-    private final List<FoldRegion> foldRegions;
-    private int highlightsStart = 0, foldRegionsStart = 0;
+    private final ANSIRunTable runs;
+    private final TextAttributes[] allAttributes;
+    private int highlightsStart = 0, foldRegionsStart = 0, linksStart = 0;
 
-    public HighlightTaskData(Editor editor, List<HighlightRangeData> highlights, List<FoldRegion> foldRegions) {
+    public HighlightTaskData(Editor editor, ANSIRunTable runs, TextAttributes[] allAttributes) {
         this.editor = editor;
-        this.highlights = highlights;
-        this.foldRegions = foldRegions;
+        this.runs = runs;
+        this.allAttributes = allAttributes;
     }
 
     private HighlightTaskData previous, next;
@@ -34,12 +45,8 @@ class HighlightTaskData {
         return editor;
     }
 
-    public List<HighlightRangeData> getHighlights() {
-        return highlights;
-    }
-
-    public List<FoldRegion> getFoldRegions() {
-        return foldRegions;
+    public ANSIRunTable getRuns() {
+        return runs;
     }
 
     public int getHighlightsStart() {
@@ -47,9 +54,8 @@ class HighlightTaskData {
     }
 
     public int getHighlightsEnd() {
-        if(highlights == null || highlights.isEmpty()) return 0;
-        int end = highlightsStart + MAX_HIGHLIGHT_OPERATION_COUNT_PER_UI_THREAD_CALL;
-        return end <= highlights.size() ? end : highlights.size();
+        int end = highlightsStart + MAX_HIGHLIGHT_OPERATION_COUNT_PER_TURN;
+        return end <= runs.getStyleCount() ? end : runs.getStyleCount();
     }
 
     public int getFoldRegionsStart() {
@@ -57,9 +63,17 @@ class HighlightTaskData {
     }
 
     public int getFoldRegionsEnd() {
-        if(foldRegions == null || foldRegions.isEmpty()) return 0;
-        int end = foldRegionsStart + MAX_FOLD_OPERATION_COUNT_PER_UI_THREAD_CALL;
-        return end <= foldRegions.size() ? end : foldRegions.size();
+        int end = foldRegionsStart + MAX_FOLD_OPERATION_COUNT_PER_TURN;
+        return end <= runs.getConcealedCount() ? end : runs.getConcealedCount();
+    }
+
+    public int getLinksStart() {
+        return linksStart;
+    }
+
+    public int getLinksEnd() {
+        int end = linksStart + MAX_LINK_OPERATION_COUNT_PER_TURN;
+        return end <= runs.getLinkCount() ? end : runs.getLinkCount();
     }
 
     HighlightTaskData previous() {
@@ -78,6 +92,20 @@ class HighlightTaskData {
         this.next = next;
     }
 
+    /**
+     * @return false for tasks that must complete even when the highlighting of their editor gets canceled
+     */
+    boolean isCancelable() {
+        return true;
+    }
+
+    /**
+     * @return true while the task must not run yet, i.e. while markup of its editor is still queued for removal
+     */
+    boolean isWaiting() {
+        return ANSIEditorMarkup.isRemovalPending(editor);
+    }
+
     /**
      * returns true if task is fully processed
      * @return
@@ -85,43 +113,95 @@ class HighlightTaskData {
     boolean taskProcessedUpdateData() {
         highlightsStart = getHighlightsEnd();
         foldRegionsStart = getFoldRegionsEnd();
-        return isHighlightsFullyProcessed() && isFoldRegionsFullyProcessed();
+        linksStart = getLinksEnd();
+        return isHighlightsFullyProcessed() && isFoldRegionsFullyProcessed() && isLinksFullyProcessed();
     }
 
     private boolean isHighlightsFullyProcessed() {
-        return highlights == null || highlights.size() <= highlightsStart;
+        return runs.getStyleCount() <= highlightsStart;
     }
 
     private boolean isFoldRegionsFullyProcessed() {
-        return foldRegions == null || foldRegions.size() <= foldRegionsStart;
+        return runs.getConcealedCount() <= foldRegionsStart;
+    }
+
+    private boolean isLinksFullyProcessed() {
+        return runs.getLinkCount() <= linksStart;
     }
 
-    public void run(TextAttributes[] allAttributes) {
+    public void run() {
         ApplicationManager.getApplication().assertIsDispatchThread();
-        applyHighlights(allAttributes);
+        ANSIHighlighterMetrics metrics = ANSIHighlighterMetrics.getInstance();
+        long start = System.nanoTime();
+        applyHighlights();
+        long highlighted = System.nanoTime();
+        metrics.highlightsApplied(getHighlightsEnd() - getHighlightsStart(), highlighted - start);
         applyFoldRegions();
+        metrics.foldRegionsApplied(getFoldRegionsEnd() - getFoldRegionsStart(), System.nanoTime() - highlighted);
+        applyLinks();
     }
 
-    private void applyHighlights(TextAttributes[] allAttributes) {
+    private void applyHighlights() {
         if(isHighlightsFullyProcessed()) return;
         MarkupModel markupModel = editor.getMarkupModel();
+        ANSIEditorMarkup markup = ANSIEditorMarkup.getInstance(editor);
         for(int i = getHighlightsStart(); i < getHighlightsEnd(); i++ ) {
-            highlights.get(i).apply(markupModel, allAttributes);
+            markup.added(HighlightRangeData.apply(markupModel, runs.getStyleStart(i), runs.getStyleEnd(i), runs.getStyleKey(i), allAttributes));
         }
     }
 
 
+    /**
+     * fold regions are created here (on the EDT, within the same batch that adds them) rather than upfront
+     * by the parser, so a pending task only holds primitive offsets
+     */
     private void applyFoldRegions() {
         if(isFoldRegionsFullyProcessed()) return;
         final FoldingModel folder = getEditor().getFoldingModel();
+        if(!(folder instanceof FoldingModelEx)) return;
+        final FoldingModelEx folderEx = (FoldingModelEx) folder;
+        final ANSIEditorMarkup markup = ANSIEditorMarkup.getInstance(editor);
         folder.runBatchFoldingOperation(() -> {
             FoldRegion region;
             for(int i = getFoldRegionsStart(); i < getFoldRegionsEnd(); i++) {
-                region = foldRegions.get(i);
-                folder.addFoldRegion(region);
+                region = folderEx.createFoldRegion(runs.getConcealedStart(i), runs.getConcealedEnd(i), "", null, true);
+                if(region == null) continue;
+                if(folder.addFoldRegion(region)) markup.added(region);
                 region.setExpanded(false);
             }
         }, true);
     }
 
+    /**
+     * each link opened by an event extends up to the next event, or up to the end of the document for the last one
+     */
+    private void applyLinks() {
+        if(isLinksFullyProcessed()) return;
+        EditorHyperlinkSupport hyperlinks = getHyperlinkSupport(editor);
+        if(hyperlinks == null) return;
+        TextAttributes attributes = editor.getColorsScheme().getAttributes(CodeInsightColors.HYPERLINK_ATTRIBUTES);
+        ANSIEditorMarkup markup = ANSIEditorMarkup.getInstance(editor);
+        int documentLength = editor.getDocument().getTextLength();
+        for(int i = getLinksStart(); i < getLinksEnd(); i++) {
+            String target = runs.getLinkTarget(i);
+            if(target == null) continue;
+            int start = runs.getLinkOffset(i);
+            int end = Math.min(i + 1 < runs.getLinkCount() ? runs.getLinkOffset(i + 1) : documentLength, documentLength);
+            if(start >= end) continue;
+            markup.added(hyperlinks.createHyperlink(start, end, attributes, new OpenUrlHyperlinkInfo(target)));
+        }
+    }
+
+    /**
+     * @return the hyperlink support of the editor, created on first use, null if the editor has no project
+     */
+    private static EditorHyperlinkSupport getHyperlinkSupport(Editor editor) {
+        EditorHyperlinkSupport hyperlinks = editor.getUserData(HYPERLINK_SUPPORT_KEY);
+        Project project = editor.getProject();
+        if(hyperlinks == null && project != null) {
+            hyperlinks = new EditorHyperlinkSupport(editor, project);
+            editor.putUserData(HYPERLINK_SUPPORT_KEY, hyperlinks);
+        }
+        return hyperlinks;
+    }
 }
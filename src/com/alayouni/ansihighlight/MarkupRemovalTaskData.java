@@ -0,0 +1,85 @@
+package com.alayouni.ansihighlight;
+
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.editor.Editor;
+import com.intellij.openapi.editor.FoldRegion;
+import com.intellij.openapi.editor.ex.FoldingModelEx;
+import com.intellij.openapi.editor.markup.MarkupModel;
+import com.intellij.openapi.editor.markup.RangeHighlighter;
+
+import java.util.List;
+
+/**
+ * Queued removal of markup released by {@link ANSIEditorMarkup#removeAll(Editor, boolean)}, served in turns by
+ * {@link HighlightQueue} like the tasks applying markup.
+ */
+class MarkupRemovalTaskData extends HighlightTaskData {
+    static final int MAX_HIGHLIGHTER_REMOVAL_COUNT_PER_TURN = 64;
+
+    static final int MAX_FOLD_REMOVAL_COUNT_PER_TURN = 64;
+
+    private final ANSIEditorMarkup owner;
+    private final List<RangeHighlighter> highlighters;
+    private final List<FoldRegion> foldRegions;
+    private int highlightersStart = 0, foldRegionsStart = 0;
+
+    MarkupRemovalTaskData(Editor editor, ANSIEditorMarkup owner, List<RangeHighlighter> highlighters, List<FoldRegion> foldRegions) {
+        super(editor, new ANSIRunTable(), null);
+        this.owner = owner;
+        this.highlighters = highlighters;
+        this.foldRegions = foldRegions;
+    }
+
+    @Override
+    boolean isCancelable() {
+        //markup would be left behind otherwise
+        return false;
+    }
+
+    @Override
+    boolean isWaiting() {
+        return false;
+    }
+
+    @Override
+    boolean taskProcessedUpdateData() {
+        if(highlightersStart < highlighters.size() || foldRegionsStart < foldRegions.size()) return false;
+        owner.removalCompleted(this);
+        return true;
+    }
+
+    @Override
+    public void run() {
+        ApplicationManager.getApplication().assertIsDispatchThread();
+        MarkupModel markupModel = getEditor().getMarkupModel();
+        int end = Math.min(highlighters.size(), highlightersStart + MAX_HIGHLIGHTER_REMOVAL_COUNT_PER_TURN);
+        for(; highlightersStart < end; highlightersStart++) {
+            RangeHighlighter highlighter = highlighters.get(highlightersStart);
+            if(highlighter.isValid()) markupModel.removeHighlighter(highlighter);
+            highlighters.set(highlightersStart, null);
+        }
+
+        if(foldRegionsStart >= foldRegions.size() || !(getEditor().getFoldingModel() instanceof FoldingModelEx)) {
+            foldRegionsStart = foldRegions.size();
+            return;
+        }
+        FoldingModelEx fm = (FoldingModelEx) getEditor().getFoldingModel();
+        int foldRegionsEnd = Math.min(foldRegions.size(), foldRegionsStart + MAX_FOLD_REMOVAL_COUNT_PER_TURN);
+        fm.runBatchFoldingOperation(() -> removeFoldRegions(fm, foldRegionsEnd), false);
+    }
+
+    /**
+     * to be run within a batch folding operation
+     */
+    void removeAllFoldRegions(FoldingModelEx fm) {
+        removeFoldRegions(fm, foldRegions.size());
+    }
+
+    private void removeFoldRegions(FoldingModelEx fm, int end) {
+        for(; foldRegionsStart < end; foldRegionsStart++) {
+            FoldRegion region = foldRegions.get(foldRegionsStart);
+            if(region.isValid()) fm.removeFoldRegion(region);
+            foldRegions.set(foldRegionsStart, null);
+        }
+    }
+}
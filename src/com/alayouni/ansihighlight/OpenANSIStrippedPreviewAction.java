@@ -0,0 +1,26 @@
+package com.alayouni.ansihighlight;
+
+import com.intellij.openapi.actionSystem.AnAction;
+import com.intellij.openapi.actionSystem.AnActionEvent;
+import com.intellij.openapi.actionSystem.CommonDataKeys;
+import com.intellij.openapi.editor.Editor;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.vfs.VirtualFile;
+
+public class OpenANSIStrippedPreviewAction extends AnAction {
+
+    @Override
+    public void actionPerformed(AnActionEvent e) {
+        Project project = e.getProject();
+        Editor editor = e.getData(CommonDataKeys.EDITOR);
+        if(project == null || editor == null) return;
+        ANSIHighlighterComponent component = project.getComponent(ANSIHighlighterComponent.class);
+        component.getAnsiHighlighter().openStrippedPreview(editor);
+    }
+
+    @Override
+    public void update(AnActionEvent e) {
+        VirtualFile file = e.getData(CommonDataKeys.VIRTUAL_FILE);
+        e.getPresentation().setEnabledAndVisible(ANSIAwareFileType.isANSIAware(file) && e.getData(CommonDataKeys.EDITOR) != null);
+    }
+}
@@ -0,0 +1,93 @@
+package com.alayouni.ansihighlight;
+
+import junit.framework.TestCase;
+
+import java.util.Random;
+
+/**
+ * Checks that repairing a run table after edits, by splicing the window {@link ANSIIncrementalParser} parsed again
+ * into the shifted table, ends up with the runs of a full parse of the edited text.
+ * <p>
+ *     Texts span 2 to 32 checkpoint intervals, meant to run with <code>-Dansi.highlighter.checkpoint.kb=1</code>
+ *     so that they are a few KB long. With the default interval they are 64 times longer and fewer iterations are
+ *     run.
+ * </p>
+ */
+public class ANSIIncrementalParserTest extends TestCase {
+    private static final int INTERVAL = ANSIParser.CHECKPOINT_INTERVAL;
+    private static final int ITERATIONS = INTERVAL <= 1 << 10 ? 3000 : 100;
+
+    public void testSplicedWindowMatchesFullParse() {
+        Random random = new Random(21);
+        int repaired = 0;
+        for(int iteration = 0; iteration < ITERATIONS; iteration++) {
+            String text = ANSITestTexts.generate(random, INTERVAL * 2 + random.nextInt(INTERVAL * 30));
+            ANSIRunTable runs = ANSIParser.parse(text).copy();
+
+            //a few edits in a row, as between two repairs, the dirty range covering all of them
+            String edited = text;
+            int dirtyStart = -1, dirtyEnd = -1;
+            for(int edits = 1 + random.nextInt(3); edits > 0; edits--) {
+                //edits on the first line go through the checkpoint at 0
+                int offset = random.nextInt(8) == 0 ? random.nextInt(Math.min(edited.length(), 8) + 1) :
+                        random.nextInt(edited.length() + 1);
+                int oldLength = Math.min(edited.length() - offset, random.nextInt(4) == 0 ? random.nextInt(200) : random.nextInt(5));
+                String inserted = random.nextBoolean() ? ANSITestTexts.generate(random, random.nextInt(20)) : "";
+                if(inserted.isEmpty() && oldLength == 0) inserted = "q";
+                edited = edited.substring(0, offset) + inserted + edited.substring(offset + oldLength);
+                runs.shift(offset, oldLength, inserted.length());
+
+                int oldEnd = offset + oldLength, delta = inserted.length() - oldLength;
+                if(dirtyStart < 0) {
+                    dirtyStart = offset;
+                    dirtyEnd = offset + inserted.length();
+                } else {
+                    dirtyStart = Math.min(dirtyStart >= oldEnd ? dirtyStart + delta : Math.min(dirtyStart, offset), offset);
+                    dirtyEnd = Math.max(dirtyEnd >= oldEnd ? dirtyEnd + delta : Math.min(dirtyEnd, offset), offset + inserted.length());
+                }
+            }
+
+            ANSIIncrementalParser incremental = new ANSIIncrementalParser(edited, random.nextBoolean() ? edited.toCharArray() : null);
+            ANSIRunTable window = incremental.reparse(runs, dirtyStart, dirtyEnd);
+            //no checkpoint to resume from, the caller parses the whole text again
+            if(window == null) continue;
+            repaired++;
+
+            String message = "iteration " + iteration + " (dirty " + dirtyStart + "-" + dirtyEnd + ", window " +
+                    incremental.getWindowStart() + "-" + incremental.getWindowEnd() + ")";
+            ANSIRunTable spliced = runs.splice(incremental.getWindowStart(), incremental.getWindowEnd(), window);
+            ANSIParser parser = new ANSIParser(edited);
+            ANSIRunTable expected = parser.parse(0, 0, 0);
+            ANSIRunTableAssert.assertSameRuns(message, expected, spliced, true);
+            assertResumableFromCheckpoints(message, edited, expected, spliced);
+            if(incremental.isEndReached()) {
+                assertEquals(message + ", last key", parser.getLastKey(), incremental.getLastKey());
+                assertEquals(message + ", resume offset", parser.getResumeOffset(), incremental.getResumeOffset());
+            }
+        }
+        assertTrue("only " + repaired + " of " + ITERATIONS + " edits repaired", repaired > ITERATIONS / 2);
+    }
+
+    public void testEditBeforeFirstCheckpointIsNotRepaired() {
+        String text = "plain\n\u001B[31mred";
+        ANSIRunTable runs = new ANSIParser(text).parse(0, 0, text.length());
+        runs.shift(1, 1, 2);
+        assertNull(new ANSIIncrementalParser("pXXain\n\u001B[31mred", null).reparse(runs, 1, 3));
+    }
+
+    /**
+     * the checkpoints of a spliced table are not all on the parser's interval, but parsing from any of them with the
+     * key recorded there must yield the runs of a full parse
+     */
+    private static void assertResumableFromCheckpoints(String message, String text, ANSIRunTable expected, ANSIRunTable spliced) {
+        for(int i = 0; i < spliced.getCheckpointCount(); i++) {
+            int offset = spliced.getCheckpointOffset(i);
+            ANSIRunTable resumed = new ANSIParser(text).parse(offset, spliced.getCheckpointKey(i), offset);
+            String at = message + ", resumed from checkpoint " + offset;
+            assertEquals(at + ", styles", ANSIRunTableAssert.dumpStyles(expected, true, offset),
+                    ANSIRunTableAssert.dumpStyles(resumed, true));
+            assertEquals(at + ", concealed", ANSIRunTableAssert.dumpConcealed(expected, offset),
+                    ANSIRunTableAssert.dumpConcealed(resumed));
+        }
+    }
+}
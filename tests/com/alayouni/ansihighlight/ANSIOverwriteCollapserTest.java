@@ -0,0 +1,179 @@
+package com.alayouni.ansihighlight;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Replays small outputs through {@link ANSIOverwriteCollapser} and checks what remains visible once the concealed
+ * ranges are folded, along with the ranges and the style runs clipped out of them.
+ */
+public class ANSIOverwriteCollapserTest extends TestCase {
+
+    public void testCarriageReturnsCollapseRedrawnLine() {
+        String text = "start\n10%\r20%\r30%\ndone\n";
+        ANSIRunTable runs = collapse(text, null);
+        assertEquals("start\n30%\ndone\n", visible(text, runs));
+        assertEquals("6-14\n", ANSIRunTableAssert.dumpConcealed(runs));
+    }
+
+    public void testPartialOverwriteRemainsVisible() {
+        String text = "100%\r99%\n";
+        ANSIRunTable parsed = ANSIParser.parse(text);
+        assertSame(parsed, ANSIOverwriteCollapser.collapse(text, null, parsed, 0, text.length(), null));
+    }
+
+    public void testHiddenTextStylesAreClipped() {
+        String text = "\u001B[31m10%\r20%\u001B[0m\n";
+        ANSIRunTable parsed = ANSIParser.parse(text);
+        assertEquals("5-12 " + Long.toHexString(parsed.getStyleKey(0)) + "\n", ANSIRunTableAssert.dumpStyles(parsed, false));
+
+        ANSIRunTable runs = ANSIOverwriteCollapser.collapse(text, null, parsed, 0, text.length(), null);
+        assertEquals("20%\n", visible(text, runs));
+        //the sequence, the overwritten text and its carriage return are joined into a single fold region
+        assertEquals("0-9\n12-16\n", ANSIRunTableAssert.dumpConcealed(runs));
+        assertEquals("9-12 " + Long.toHexString(parsed.getStyleKey(0)) + "\n", ANSIRunTableAssert.dumpStyles(runs, false));
+    }
+
+    public void testEraseToEndOfLine() {
+        //the first write is partially overwritten, then erased past the cursor
+        String text = "progress 50%\rdone\u001B[K\n";
+        ANSIRunTable runs = collapse(text, null);
+        assertEquals("done\n", visible(text, runs));
+        assertEquals("0-13\n17-20\n", ANSIRunTableAssert.dumpConcealed(runs));
+    }
+
+    public void testEraseToStartOfLine() {
+        String text = "abcdef\u001B[1Kxy\n";
+        assertEquals("xy\n", visible(text, collapse(text, null)));
+
+        //the cursor column is erased as well, half of the line is not enough to hide it
+        text = "abcdef\r\u001B[3G\u001B[1K\n";
+        ANSIRunTable parsed = ANSIParser.parse(text);
+        assertSame(parsed, ANSIOverwriteCollapser.collapse(text, null, parsed, 0, text.length(), null));
+    }
+
+    public void testEraseWholeLine() {
+        //the cursor stays where it is, the new text lands past the erased cells
+        String text = "abc\u001B[2Kdef\n";
+        ANSIRunTable runs = collapse(text, null);
+        assertEquals("def\n", visible(text, runs));
+        assertEquals("0-7\n", ANSIRunTableAssert.dumpConcealed(runs));
+    }
+
+    public void testCursorUpRedrawsPreviousLine() {
+        String text = "one\ntwo\n\u001B[2Aone!\u001B[2B\rthree\n";
+        ANSIRunTable runs = collapse(text, null);
+        assertEquals("two\none!\rthree\n", visible(text, runs));
+        assertEquals("0-4\n8-12\n16-20\n", ANSIRunTableAssert.dumpConcealed(runs));
+    }
+
+    public void testCursorUpStopsAtFirstRow() {
+        String text = "x\u001B[5Ay\n";
+        ANSIRunTable parsed = ANSIParser.parse(text);
+        assertSame(parsed, ANSIOverwriteCollapser.collapse(text, null, parsed, 0, text.length(), null));
+    }
+
+    public void testCursorDownStopsAtLastRow() {
+        //moving down does not scroll, the carriage return brings the cursor back over the last row
+        String text = "a\nbb\u001B[1A\u001B[9B\rXX\n";
+        ANSIRunTable runs = collapse(text, null);
+        assertEquals("a\nXX\n", visible(text, runs));
+    }
+
+    public void testCursorToColumn() {
+        String text = "loading...\u001B[1Gdone      \n";
+        ANSIRunTable runs = collapse(text, null);
+        assertEquals("done      \n", visible(text, runs));
+        assertEquals("0-14\n", ANSIRunTableAssert.dumpConcealed(runs));
+    }
+
+    public void testCursorUpReachesBackOnlyMaxRows() {
+        StringBuilder text = new StringBuilder();
+        for(int i = 0; i < 300; i++) {
+            text.append("line").append(i).append('\n');
+        }
+        //256 rows back at most, the first rows scrolled out of the screen
+        text.append("\u001B[300AXXXXXXXX\n");
+        String visible = visible(text.toString(), collapse(text.toString(), null));
+        assertTrue(visible.startsWith("line0\n"));
+        assertTrue(visible.contains("line44\nline46\n"));
+        assertTrue(visible.endsWith("line299\nXXXXXXXX\n"));
+    }
+
+    public void testNothingToCollapse() {
+        String text = "plain\n\u001B[32mtext\u001B[0m\n";
+        ANSIRunTable parsed = ANSIParser.parse(text);
+        assertSame(parsed, ANSIOverwriteCollapser.collapse(text, null, parsed, 0, text.length(), null));
+    }
+
+    public void testScannedCarriageReturnsAcrossSplitLineBreak() throws IOException {
+        //the file is read in two scans, the first one stopping between the \r and \n of a line break
+        ANSICarriageReturnScanner scanner = ANSICarriageReturnScanner.create(StandardCharsets.UTF_8);
+        int[] first = scanner.scan(bytes("start\r"));
+        String text = "start\n";
+        assertTrue(scanner.matches(text, first));
+        //as far as the first scan knows, the file ends with a lone carriage return
+        assertEquals(1, first.length);
+        assertEquals(5, first[0]);
+
+        int[] second = scanner.scan(bytes("\n10%\r20%\n"));
+        text = "start\n10%\n20%\n";
+        assertTrue(scanner.matches(text, second));
+        assertEquals(1, second.length);
+        assertEquals(9, second[0]);
+
+        //the tail gets collapsed from the end of the first scan
+        ANSIRunTable runs = ANSIOverwriteCollapser.collapse(text, null, ANSIParser.parse(text), first[0] + 1, text.length(), second);
+        assertEquals("start\n20%\n", visible(text, runs));
+        assertEquals("6-10\n", ANSIRunTableAssert.dumpConcealed(runs));
+
+        //a single scan of the whole file agrees
+        int[] whole = ANSICarriageReturnScanner.create(StandardCharsets.UTF_8).scan(bytes("start\r\n10%\r20%\n"));
+        assertEquals(1, whole.length);
+        assertEquals(9, whole[0]);
+    }
+
+    public void testCarriageReturnsOfNonAsciiLines() throws IOException {
+        ANSICarriageReturnScanner scanner = ANSICarriageReturnScanner.create(StandardCharsets.UTF_8);
+        int[] carriageReturns = scanner.scan(bytes("caf\u00E9 1\rcaf\u00E9 2\n"));
+        String text = "caf\u00E9 1\ncaf\u00E9 2\n";
+        assertTrue(scanner.matches(text, carriageReturns));
+
+        ANSIRunTable runs = collapse(text, carriageReturns);
+        assertEquals("caf\u00E9 2\n", visible(text, runs));
+    }
+
+    private static ANSIRunTable collapse(String text, int[] carriageReturns) {
+        ANSIRunTable parsed = ANSIParser.parse(text);
+        ANSIRunTable runs = ANSIOverwriteCollapser.collapse(text, backingArray(text), parsed, 0, text.length(), carriageReturns);
+        assertNotSame("nothing got collapsed", parsed, runs);
+        return runs;
+    }
+
+    /**
+     * scanning the backing array or the text must not make any difference, both get used
+     */
+    private static char[] backingArray(String text) {
+        return text.length() % 2 == 0 ? text.toCharArray() : null;
+    }
+
+    /**
+     * @return the text as shown once the concealed ranges are folded
+     */
+    private static String visible(String text, ANSIRunTable runs) {
+        StringBuilder visible = new StringBuilder();
+        int offset = 0;
+        for(int i = 0; i < runs.getConcealedCount(); i++) {
+            visible.append(text, offset, runs.getConcealedStart(i));
+            offset = runs.getConcealedEnd(i);
+        }
+        return visible.append(text.substring(offset)).toString();
+    }
+
+    private static ByteArrayInputStream bytes(String content) {
+        return new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8));
+    }
+}
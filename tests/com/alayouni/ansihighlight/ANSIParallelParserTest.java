@@ -0,0 +1,63 @@
+package com.alayouni.ansihighlight;
+
+import junit.framework.TestCase;
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Checks that {@link ANSIParallelParser} returns the exact output of a sequential {@link ANSIParser}, on random texts
+ * cut into chunks of a few dozen chars so that chunk boundaries fall everywhere: inside style runs, right before a
+ * reset, in the middle of a chain of sequences and so on.
+ */
+public class ANSIParallelParserTest extends TestCase {
+    private static final int ITERATIONS = 3000;
+
+    private ForkJoinPool pool;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        pool = new ForkJoinPool(4);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        pool.shutdownNow();
+        super.tearDown();
+    }
+
+    public void testSameOutputAsSequentialParser() {
+        Random random = new Random(13);
+        for(int iteration = 0; iteration < ITERATIONS; iteration++) {
+            String text = ANSITestTexts.generate(random, 200 + random.nextInt(4000));
+            int from = ANSITestTexts.randomLineStart(random, text);
+            int emitFrom = from + random.nextInt(text.length() - from + 1);
+            long key0 = ANSITestTexts.generateKey(random);
+            char[] chars = random.nextBoolean() ? text.toCharArray() : null;
+            String message = "iteration " + iteration + " (from " + from + ", emitFrom " + emitFrom + ", key0 " + Long.toHexString(key0) + ")";
+
+            ANSIParser sequential = new ANSIParser(text);
+            ANSIRunTable expected = sequential.parse(from, key0, emitFrom);
+            ANSIParallelParser parallel = new ANSIParallelParser(text, chars, pool, 16 + random.nextInt(200));
+            ANSIRunTable actual = parallel.parse(from, key0, emitFrom);
+
+            ANSIRunTableAssert.assertSameRuns(message, expected, actual, false);
+            ANSIRunTableAssert.assertSameCheckpoints(message, expected, actual);
+            assertEquals(message + ", last key", sequential.getLastKey(), parallel.getLastKey());
+            assertEquals(message + ", resume offset", sequential.getResumeOffset(), parallel.getResumeOffset());
+        }
+    }
+
+    public void testTextsShorterThanTwoChunksAreParsedSequentially() {
+        String text = "\u001B[31mred\u001B[0m plain\n\u001B[1mbold";
+        ANSIParser sequential = new ANSIParser(text);
+        ANSIRunTable expected = sequential.parse(0, 0, 0);
+        ANSIParallelParser parallel = new ANSIParallelParser(text, null, pool, text.length());
+        ANSIRunTable actual = parallel.parse(0, 0, 0);
+
+        ANSIRunTableAssert.assertSameRuns("single chunk", expected, actual, false);
+        assertEquals(sequential.getLastKey(), parallel.getLastKey());
+        assertEquals(sequential.getResumeOffset(), parallel.getResumeOffset());
+    }
+}
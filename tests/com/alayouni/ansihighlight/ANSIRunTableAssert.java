@@ -0,0 +1,87 @@
+package com.alayouni.ansihighlight;
+
+import junit.framework.Assert;
+
+/**
+ * Compares {@link ANSIRunTable}s through readable dumps of their tables, one entry per line, so that a failure shows
+ * the first diverging run.
+ */
+class ANSIRunTableAssert {
+    private ANSIRunTableAssert() {}
+
+    /**
+     * @param mergeStyles true to join touching style runs of the same key before comparing, tables spliced together
+     *                    split runs at the splice bounds
+     */
+    static void assertSameRuns(String message, ANSIRunTable expected, ANSIRunTable actual, boolean mergeStyles) {
+        Assert.assertEquals(message + ", styles", dumpStyles(expected, mergeStyles), dumpStyles(actual, mergeStyles));
+        Assert.assertEquals(message + ", concealed", dumpConcealed(expected), dumpConcealed(actual));
+        Assert.assertEquals(message + ", links", dumpLinks(expected), dumpLinks(actual));
+    }
+
+    static void assertSameCheckpoints(String message, ANSIRunTable expected, ANSIRunTable actual) {
+        Assert.assertEquals(message + ", checkpoints", dumpCheckpoints(expected), dumpCheckpoints(actual));
+    }
+
+    static String dumpStyles(ANSIRunTable table, boolean merge) {
+        return dumpStyles(table, merge, 0);
+    }
+
+    /**
+     * @param from the runs before this offset are left out, those crossing it are clipped to it
+     */
+    static String dumpStyles(ANSIRunTable table, boolean merge, int from) {
+        StringBuilder dump = new StringBuilder();
+        int pendingStart = -1, pendingEnd = -1;
+        long pendingKey = 0;
+        for(int i = table.firstStyleEndingAfter(from); i < table.getStyleCount(); i++) {
+            int start = Math.max(table.getStyleStart(i), from), end = table.getStyleEnd(i);
+            long key = table.getStyleKey(i);
+            if(merge && pendingEnd == start && pendingKey == key) {
+                pendingEnd = end;
+                continue;
+            }
+            if(pendingStart >= 0) appendStyle(dump, pendingStart, pendingEnd, pendingKey);
+            pendingStart = start;
+            pendingEnd = end;
+            pendingKey = key;
+        }
+        if(pendingStart >= 0) appendStyle(dump, pendingStart, pendingEnd, pendingKey);
+        return dump.toString();
+    }
+
+    private static void appendStyle(StringBuilder dump, int start, int end, long key) {
+        dump.append(start).append('-').append(end).append(' ').append(Long.toHexString(key)).append('\n');
+    }
+
+    static String dumpConcealed(ANSIRunTable table) {
+        return dumpConcealed(table, 0);
+    }
+
+    /**
+     * @param from the ranges ending at or before this offset are left out
+     */
+    static String dumpConcealed(ANSIRunTable table, int from) {
+        StringBuilder dump = new StringBuilder();
+        for(int i = table.firstConcealedEndingAfter(from); i < table.getConcealedCount(); i++) {
+            dump.append(table.getConcealedStart(i)).append('-').append(table.getConcealedEnd(i)).append('\n');
+        }
+        return dump.toString();
+    }
+
+    static String dumpCheckpoints(ANSIRunTable table) {
+        StringBuilder dump = new StringBuilder();
+        for(int i = 0; i < table.getCheckpointCount(); i++) {
+            dump.append(table.getCheckpointOffset(i)).append(' ').append(Long.toHexString(table.getCheckpointKey(i))).append('\n');
+        }
+        return dump.toString();
+    }
+
+    static String dumpLinks(ANSIRunTable table) {
+        StringBuilder dump = new StringBuilder();
+        for(int i = 0; i < table.getLinkCount(); i++) {
+            dump.append(table.getLinkOffset(i)).append(' ').append(table.getLinkTarget(i)).append('\n');
+        }
+        return dump.toString();
+    }
+}
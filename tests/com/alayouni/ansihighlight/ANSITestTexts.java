@@ -0,0 +1,55 @@
+package com.alayouni.ansihighlight;
+
+import java.util.Random;
+
+/**
+ * Random texts mixing plain text, line breaks, supported and malformed sequences, for the tests checking a parsing
+ * shortcut against a plain {@link ANSIParser#parse(int, long, int)}.
+ */
+class ANSITestTexts {
+    private static final String[] SEQUENCES = {
+            "\u001B[31m", "\u001B[0m", "\u001B[1;4m", "\u001B[38;5;200m", "\u001B[38;2;10;20;30m", "\u001B[42m",
+            "\u001B[m", "\u001B[22m", "\u001B[99999m", "\u001B[?25l", "\u001B[2K", "\u001B7", "\u001B(B",
+            "\u001B]8;;http://a\u001B\\", "\u001B]8;id=1;http://b\u0007", "\u001B]8;;\u001B\\", "\u001B]0;title\u0007",
+            //malformed or truncated
+            "\u001B[3", "\u001B", "\u001B]2;unterminated", "\u001BP1;2q", "\u001B]8;;http://c"
+    };
+
+    private static final String[] PLAIN = {"word ", "abc ", "xyz", "\n", "\n", "\r\n", "caf\u00E9 "};
+
+    private static final String[] RENDITIONS = {"\u001B[31m", "\u001B[1;4m", "\u001B[38;5;200m", "\u001B[48;2;1;2;3m", "\u001B[3;9m"};
+
+    private ANSITestTexts() {}
+
+    static String generate(Random random, int length) {
+        StringBuilder text = new StringBuilder(length + 32);
+        while (text.length() < length) {
+            text.append(random.nextInt(4) == 0 ? SEQUENCES[random.nextInt(SEQUENCES.length)] : PLAIN[random.nextInt(PLAIN.length)]);
+        }
+        return text.toString();
+    }
+
+    /**
+     * @return the style key in effect after a few random renditions, 0 one time out of 4
+     */
+    static long generateKey(Random random) {
+        if(random.nextInt(4) == 0) return 0;
+        StringBuilder chain = new StringBuilder();
+        for(int i = random.nextInt(3); i >= 0; i--) {
+            chain.append(RENDITIONS[random.nextInt(RENDITIONS.length)]);
+        }
+        ANSIParser parser = new ANSIParser(chain);
+        parser.parse(0, 0, 0);
+        return parser.getLastKey();
+    }
+
+    /**
+     * @return the start of a random line of <code>text</code>, where parsing may start since no sequence spans a
+     * line break
+     */
+    static int randomLineStart(Random random, String text) {
+        int offset = random.nextInt(text.length() + 1);
+        while (offset > 0 && text.charAt(offset - 1) != '\n' && text.charAt(offset - 1) != '\r') offset--;
+        return offset;
+    }
+}